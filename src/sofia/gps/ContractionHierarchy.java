@@ -0,0 +1,583 @@
+package sofia.gps;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A contraction hierarchy over a {@link RoadGraph} for one mode of travel.
+ * Building one ranks every node and adds shortcut edges that skip over lower
+ * ranked nodes; afterward, a shortest path query only has to search upward
+ * from both ends, which settles a tiny fraction of the nodes that A* does.
+ * </br></br>
+ * Building is slow and is meant to be done ahead of time, for example on a
+ * desktop machine, with the result saved next to the graph file. The file
+ * format, with every value big-endian, is:
+ * <pre>
+ * int   magic, "RCH1"
+ * int   access, {@link RoadGraph#ACCESS_DRIVING} or
+ *       {@link RoadGraph#ACCESS_WALKING}
+ * int   node count n, which must match the graph
+ * int   edge count m
+ * n  x  int rank
+ * m  x  (int from, int to, double seconds, int first child, int second child)
+ * </pre>
+ * Original edges have -1 for both children; a shortcut's children are the two
+ * edges it replaces, which come before it in the file.
+ */
+public class ContractionHierarchy {
+
+	// Constants
+	private static final int FILE_MAGIC = 0x52434831; // "RCH1"
+	// Witness searches give up after settling this many nodes; giving up
+	// early only costs an unnecessary shortcut
+	private static final int WITNESS_SETTLE_LIMIT = 500;
+
+	// Fields
+	private final int nodeCount;
+	private final int access;
+	private final int[] rank;
+	private final int[] edgeFrom, edgeTo, firstChild, secondChild;
+	private final double[] edgeWeight;
+	// Edges leading to a higher ranked node, grouped by their source
+	private final int[] upFirst, upEdges;
+	// Edges coming from a higher ranked node, grouped by their target
+	private final int[] downFirst, downEdges;
+
+	// The forward and backward search spaces, reused between queries on the
+	// same thread, so that queries on different threads run at the same time
+	private final ThreadLocal<SearchSpace[]> searchSpaces = new ThreadLocal<SearchSpace[]>() {
+		@Override
+		protected SearchSpace[] initialValue() {
+			return new SearchSpace[] { new SearchSpace(nodeCount),
+					new SearchSpace(nodeCount) };
+		}
+	};
+
+	private ContractionHierarchy(int nodeCount, int access, int[] rank,
+			int[] edgeFrom, int[] edgeTo, double[] edgeWeight,
+			int[] firstChild, int[] secondChild) {
+		this.nodeCount = nodeCount;
+		this.access = access;
+		this.rank = rank;
+		this.edgeFrom = edgeFrom;
+		this.edgeTo = edgeTo;
+		this.edgeWeight = edgeWeight;
+		this.firstChild = firstChild;
+		this.secondChild = secondChild;
+
+		upFirst = new int[nodeCount + 1];
+		downFirst = new int[nodeCount + 1];
+		for (int e = 0; e < edgeFrom.length; e++) {
+			if (rank[edgeFrom[e]] < rank[edgeTo[e]]) {
+				upFirst[edgeFrom[e] + 1]++;
+			} else {
+				downFirst[edgeTo[e] + 1]++;
+			}
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			upFirst[i + 1] += upFirst[i];
+			downFirst[i + 1] += downFirst[i];
+		}
+		upEdges = new int[upFirst[nodeCount]];
+		downEdges = new int[downFirst[nodeCount]];
+		int[] upNext = upFirst.clone();
+		int[] downNext = downFirst.clone();
+		for (int e = 0; e < edgeFrom.length; e++) {
+			if (rank[edgeFrom[e]] < rank[edgeTo[e]]) {
+				upEdges[upNext[edgeFrom[e]]++] = e;
+			} else {
+				downEdges[downNext[edgeTo[e]]++] = e;
+			}
+		}
+	}
+
+	/**
+	 * Builds the hierarchy for a graph. This can take a long time for large
+	 * graphs and should not be run on the main thread.
+	 *
+	 * @param graph
+	 * @param mode
+	 *            Either {@link MapDirection#MODE_DRIVING} or
+	 *            {@link MapDirection#MODE_WALKING}
+	 * @return the hierarchy
+	 */
+	public static ContractionHierarchy build(RoadGraph graph, String mode) {
+		return new Builder(graph, RoadGraph.accessFor(mode)).build();
+	}
+
+	/**
+	 * Reads a hierarchy file
+	 *
+	 * @param file
+	 * @return the hierarchy
+	 * @throws IOException
+	 *             if the file cannot be read or is not a hierarchy file
+	 */
+	public static ContractionHierarchy read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a hierarchy in the file format from a stream
+	 *
+	 * @param stream
+	 *            the stream to read; it is not closed by this method
+	 * @return the hierarchy
+	 * @throws IOException
+	 *             if the stream cannot be read or does not hold a hierarchy
+	 */
+	public static ContractionHierarchy read(InputStream stream)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				stream, 65536));
+		if (in.readInt() != FILE_MAGIC) {
+			throw new IOException("Not a contraction hierarchy file");
+		}
+		int access = in.readInt();
+		int n = in.readInt();
+		int m = in.readInt();
+		if (n < 0 || m < 0) {
+			throw new IOException("Corrupt contraction hierarchy file");
+		}
+		int[] rank = new int[n];
+		for (int i = 0; i < n; i++) {
+			rank[i] = in.readInt();
+		}
+		int[] from = new int[m];
+		int[] to = new int[m];
+		double[] weight = new double[m];
+		int[] first = new int[m];
+		int[] second = new int[m];
+		for (int e = 0; e < m; e++) {
+			from[e] = in.readInt();
+			to[e] = in.readInt();
+			weight[e] = in.readDouble();
+			first[e] = in.readInt();
+			second[e] = in.readInt();
+			// Shortcuts are unpacked by following their children, so they
+			// must point back to earlier edges or the unpacking never ends
+			boolean original = first[e] == -1 && second[e] == -1;
+			boolean shortcut = first[e] >= 0 && first[e] < e
+					&& second[e] >= 0 && second[e] < e;
+			if (from[e] < 0 || from[e] >= n || to[e] < 0 || to[e] >= n
+					|| !(original || shortcut)) {
+				throw new IOException("Corrupt contraction hierarchy file");
+			}
+		}
+		return new ContractionHierarchy(n, access, rank, from, to, weight,
+				first, second);
+	}
+
+	/**
+	 * Writes this hierarchy in the file format
+	 *
+	 * @param stream
+	 *            the stream to write to; it is flushed but not closed
+	 * @throws IOException
+	 *             if the stream cannot be written
+	 */
+	public void write(OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				stream, 65536));
+		out.writeInt(FILE_MAGIC);
+		out.writeInt(access);
+		out.writeInt(nodeCount);
+		out.writeInt(edgeFrom.length);
+		for (int i = 0; i < nodeCount; i++) {
+			out.writeInt(rank[i]);
+		}
+		for (int e = 0; e < edgeFrom.length; e++) {
+			out.writeInt(edgeFrom[e]);
+			out.writeInt(edgeTo[e]);
+			out.writeDouble(edgeWeight[e]);
+			out.writeInt(firstChild[e]);
+			out.writeInt(secondChild[e]);
+		}
+		out.flush();
+	}
+
+	/**
+	 * @return the access flag of the mode of travel this hierarchy is for
+	 */
+	public int getAccess() {
+		return access;
+	}
+
+	/**
+	 * @return the number of nodes, which matches the graph it was built from
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * @return the number of edges, including shortcuts
+	 */
+	public int getEdgeCount() {
+		return edgeFrom.length;
+	}
+
+	/**
+	 * Finds the fastest path between two nodes with a bidirectional upward
+	 * search. Paths can be found on several threads at once.
+	 *
+	 * @param graph
+	 *            the graph this hierarchy was built from, for coordinates
+	 * @param source
+	 * @param target
+	 * @param out
+	 *            the buffer the coordinates of the path's nodes are appended
+	 *            to
+	 * @return whether a path was found; out is unchanged if not
+	 */
+	public boolean findPath(RoadGraph graph, int source, int target,
+			RoutePoints out) {
+		SearchSpace[] spaces = searchSpaces.get();
+		SearchSpace forward = spaces[0];
+		SearchSpace backward = spaces[1];
+		forward.reset();
+		backward.reset();
+		forward.reach(source, 0, -1, 0);
+		backward.reach(target, 0, -1, 0);
+
+		double best = Double.POSITIVE_INFINITY;
+		int meeting = -1;
+		while (true) {
+			boolean forwardDone = forward.heap.isEmpty()
+					|| forward.heap.peekKey() >= best;
+			boolean backwardDone = backward.heap.isEmpty()
+					|| backward.heap.peekKey() >= best;
+			if (forwardDone && backwardDone) {
+				break;
+			}
+			boolean stepForward = !forwardDone
+					&& (backwardDone || forward.heap.peekKey() <= backward.heap
+							.peekKey());
+			SearchSpace space = stepForward ? forward : backward;
+			SearchSpace other = stepForward ? backward : forward;
+
+			double key = space.heap.peekKey();
+			int node = space.heap.pop();
+			double d = space.distance(node);
+			if (key > d) {
+				continue;
+			}
+			double total = d + other.distance(node);
+			if (total < best) {
+				best = total;
+				meeting = node;
+			}
+
+			int[] first = stepForward ? upFirst : downFirst;
+			int[] edges = stepForward ? upEdges : downEdges;
+			for (int i = first[node]; i < first[node + 1]; i++) {
+				int e = edges[i];
+				int next = stepForward ? edgeTo[e] : edgeFrom[e];
+				double nd = d + edgeWeight[e];
+				if (nd < space.distance(next)) {
+					space.reach(next, nd, e, nd);
+				}
+			}
+		}
+
+		if (meeting == -1) {
+			return false;
+		}
+
+		// Collect the top-level edges from source to meeting to target
+		IntStack path = new IntStack();
+		for (int node = meeting; node != source;) {
+			int e = forward.previous(node);
+			path.push(e);
+			node = edgeFrom[e];
+		}
+		path.reverse();
+		for (int node = meeting; node != target;) {
+			int e = backward.previous(node);
+			path.push(e);
+			node = edgeTo[e];
+		}
+
+		out.add(graph.getLatitude(source), graph.getLongitude(source));
+		IntStack pending = new IntStack();
+		for (int i = 0; i < path.size; i++) {
+			pending.push(path.items[i]);
+			while (pending.size > 0) {
+				int e = pending.pop();
+				if (firstChild[e] == -1) {
+					int node = edgeTo[e];
+					out.add(graph.getLatitude(node), graph.getLongitude(node));
+				} else {
+					// Expand the second child after the first
+					pending.push(secondChild[e]);
+					pending.push(firstChild[e]);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A growable stack of ints
+	 */
+	private static class IntStack {
+		int[] items = new int[32];
+		int size;
+
+		void push(int item) {
+			if (size == items.length) {
+				int[] larger = new int[size * 2];
+				System.arraycopy(items, 0, larger, 0, size);
+				items = larger;
+			}
+			items[size++] = item;
+		}
+
+		int pop() {
+			return items[--size];
+		}
+
+		void reverse() {
+			for (int i = 0, j = size - 1; i < j; i++, j--) {
+				int t = items[i];
+				items[i] = items[j];
+				items[j] = t;
+			}
+		}
+	}
+
+	/**
+	 * Contracts the nodes of a graph one at a time, least important first,
+	 * using the edge difference plus the number of already contracted
+	 * neighbors as the importance
+	 */
+	private static class Builder {
+		private final int nodeCount;
+		private final int access;
+
+		// Every edge so far, original and shortcut
+		private int edgeCount;
+		private int[] from = new int[1024], to = new int[1024];
+		private int[] firstChild = new int[1024], secondChild = new int[1024];
+		private double[] weight = new double[1024];
+
+		// Edges leaving and entering each node
+		private final int[][] outEdges, inEdges;
+		private final int[] outSize, inSize;
+
+		private final boolean[] contracted;
+		private final int[] contractedNeighbors;
+		private final SearchSpace witness;
+
+		Builder(RoadGraph graph, int access) {
+			this.nodeCount = graph.getNodeCount();
+			this.access = access;
+			outEdges = new int[nodeCount][];
+			inEdges = new int[nodeCount][];
+			outSize = new int[nodeCount];
+			inSize = new int[nodeCount];
+			contracted = new boolean[nodeCount];
+			contractedNeighbors = new int[nodeCount];
+			witness = new SearchSpace(nodeCount);
+
+			for (int u = 0; u < nodeCount; u++) {
+				for (int e = graph.firstEdge[u]; e < graph.firstEdge[u + 1]; e++) {
+					double cost = graph.edgeCost(e, access);
+					int v = graph.edgeTarget[e];
+					if (cost != Double.POSITIVE_INFINITY && v != u) {
+						addEdge(u, v, cost, -1, -1);
+					}
+				}
+			}
+		}
+
+		ContractionHierarchy build() {
+			int[] rank = new int[nodeCount];
+			NodeHeap queue = new NodeHeap();
+			for (int v = 0; v < nodeCount; v++) {
+				queue.push(v, priority(v));
+			}
+
+			int order = 0;
+			while (!queue.isEmpty()) {
+				int v = queue.pop();
+				// Priorities go stale as neighbors are contracted, so check
+				// this one again before committing to it
+				double p = priority(v);
+				if (!queue.isEmpty() && p > queue.peekKey()) {
+					queue.push(v, p);
+					continue;
+				}
+				contract(v, true);
+				contracted[v] = true;
+				rank[v] = order++;
+				for (int i = 0; i < outSize[v]; i++) {
+					contractedNeighbors[to[outEdges[v][i]]]++;
+				}
+				for (int i = 0; i < inSize[v]; i++) {
+					contractedNeighbors[from[inEdges[v][i]]]++;
+				}
+			}
+
+			int[] f = new int[edgeCount];
+			int[] t = new int[edgeCount];
+			double[] w = new double[edgeCount];
+			int[] c1 = new int[edgeCount];
+			int[] c2 = new int[edgeCount];
+			System.arraycopy(from, 0, f, 0, edgeCount);
+			System.arraycopy(to, 0, t, 0, edgeCount);
+			System.arraycopy(weight, 0, w, 0, edgeCount);
+			System.arraycopy(firstChild, 0, c1, 0, edgeCount);
+			System.arraycopy(secondChild, 0, c2, 0, edgeCount);
+			return new ContractionHierarchy(nodeCount, access, rank, f, t, w,
+					c1, c2);
+		}
+
+		private double priority(int v) {
+			int removed = 0;
+			for (int i = 0; i < outSize[v]; i++) {
+				if (!contracted[to[outEdges[v][i]]]) {
+					removed++;
+				}
+			}
+			for (int i = 0; i < inSize[v]; i++) {
+				if (!contracted[from[inEdges[v][i]]]) {
+					removed++;
+				}
+			}
+			return contract(v, false) - removed + contractedNeighbors[v];
+		}
+
+		/**
+		 * Finds the shortcuts needed to remove v from the remaining graph
+		 *
+		 * @param v
+		 * @param apply
+		 *            whether to add them, or only count them
+		 * @return the number of shortcuts
+		 */
+		private int contract(int v, boolean apply) {
+			int shortcuts = 0;
+			// Shortcuts added below go into other nodes' lists, so v's lists
+			// are stable while they are iterated
+			for (int i = 0; i < inSize[v]; i++) {
+				int in = inEdges[v][i];
+				int u = from[in];
+				if (contracted[u]) {
+					continue;
+				}
+
+				double limit = -1;
+				for (int j = 0; j < outSize[v]; j++) {
+					int w = to[outEdges[v][j]];
+					if (!contracted[w] && w != u) {
+						limit = Math.max(limit, weight[in]
+								+ weight[outEdges[v][j]]);
+					}
+				}
+				if (limit < 0) {
+					continue;
+				}
+
+				searchWitnesses(u, v, limit);
+				for (int j = 0; j < outSize[v]; j++) {
+					int out = outEdges[v][j];
+					int w = to[out];
+					if (contracted[w] || w == u) {
+						continue;
+					}
+					double via = weight[in] + weight[out];
+					if (witness.distance(w) > via) {
+						shortcuts++;
+						if (apply) {
+							addEdge(u, w, via, in, out);
+						}
+					}
+				}
+			}
+			return shortcuts;
+		}
+
+		/**
+		 * Runs a Dijkstra search from u that avoids v and contracted nodes,
+		 * up to the given distance
+		 */
+		private void searchWitnesses(int u, int v, double limit) {
+			witness.reset();
+			witness.reach(u, 0, -1, 0);
+			int settled = 0;
+			while (!witness.heap.isEmpty() && settled < WITNESS_SETTLE_LIMIT) {
+				double key = witness.heap.peekKey();
+				if (key > limit) {
+					break;
+				}
+				int node = witness.heap.pop();
+				if (key > witness.distance(node)) {
+					continue;
+				}
+				settled++;
+				for (int i = 0; i < outSize[node]; i++) {
+					int e = outEdges[node][i];
+					int next = to[e];
+					if (next == v || contracted[next]) {
+						continue;
+					}
+					double nd = key + weight[e];
+					if (nd < witness.distance(next)) {
+						witness.reach(next, nd, e, nd);
+					}
+				}
+			}
+		}
+
+		private void addEdge(int u, int v, double cost, int child1, int child2) {
+			if (edgeCount == from.length) {
+				int size = edgeCount * 2;
+				from = grow(from, size);
+				to = grow(to, size);
+				firstChild = grow(firstChild, size);
+				secondChild = grow(secondChild, size);
+				double[] larger = new double[size];
+				System.arraycopy(weight, 0, larger, 0, edgeCount);
+				weight = larger;
+			}
+			int e = edgeCount++;
+			from[e] = u;
+			to[e] = v;
+			weight[e] = cost;
+			firstChild[e] = child1;
+			secondChild[e] = child2;
+
+			outEdges[u] = append(outEdges[u], outSize[u]++, e);
+			inEdges[v] = append(inEdges[v], inSize[v]++, e);
+		}
+
+		private static int[] grow(int[] array, int size) {
+			int[] larger = new int[size];
+			System.arraycopy(array, 0, larger, 0, array.length);
+			return larger;
+		}
+
+		private static int[] append(int[] list, int size, int item) {
+			if (list == null) {
+				list = new int[4];
+			} else if (size == list.length) {
+				list = grow(list, size * 2);
+			}
+			list[size] = item;
+			return list;
+		}
+	}
+}
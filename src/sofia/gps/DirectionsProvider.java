@@ -0,0 +1,41 @@
+package sofia.gps;
+
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * A source of routes between two locations. {@link MapDirection} asks the
+ * Google Directions service; {@link OfflineDirectionsProvider} searches a
+ * road graph stored on the device.
+ * </br></br>
+ * Implementations are called from background threads and must be safe to
+ * use from more than one at a time.
+ */
+public interface DirectionsProvider {
+
+	/**
+	 * Finds the route from start to end and appends its points to a buffer
+	 * 
+	 * @param start The LatLng point that is the starting location
+	 * @param end The LatLng point that is the ending location
+	 * @param mode Either {@link MapDirection#MODE_DRIVING} or
+	 *            {@link MapDirection#MODE_WALKING}
+	 * @param out the buffer the points are appended to
+	 * @return out, or null if no route could be found
+	 */
+	RoutePoints getRoutePoints(LatLng start, LatLng end, String mode,
+			RoutePoints out);
+
+	/**
+	 * Finds the route from start to end and appends a coarse version of it,
+	 * suitable for previews, to a buffer
+	 * 
+	 * @param start The LatLng point that is the starting location
+	 * @param end The LatLng point that is the ending location
+	 * @param mode Either {@link MapDirection#MODE_DRIVING} or
+	 *            {@link MapDirection#MODE_WALKING}
+	 * @param out the buffer the points are appended to
+	 * @return out, or null if no route could be found
+	 */
+	RoutePoints getOverviewPoints(LatLng start, LatLng end, String mode,
+			RoutePoints out);
+}
@@ -0,0 +1,275 @@
+package sofia.gps;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import android.util.Log;
+
+/**
+ * The HTTP transport that MapDirection uses to reach the Directions API. A
+ * single transport keeps a pool of kept-alive connections, asks for gzip
+ * compressed responses, applies connect and read timeouts, and caps how many
+ * direction fetches run at once. It also owns a bounded worker pool that
+ * callers can use to run fetches off the main thread.
+ * </br></br>
+ * The endpoint is configurable so that tests can point the transport at a
+ * local server.
+ */
+public class DirectionsTransport {
+
+	// Constants
+	public static final String DEFAULT_ENDPOINT = "http://maps.googleapis.com/maps/api/directions/xml";
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	public static final int DEFAULT_READ_TIMEOUT = 15000;
+	public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+
+	private static final String TAG = "DirectionsTransport";
+
+	// The transport used by MapDirections that are not given one
+	private static DirectionsTransport defaultTransport = null;
+
+	// Fields
+	private final String endpoint;
+	private final HttpClient httpClient;
+	private final Semaphore permits;
+	private final ExecutorService executor;
+
+	/**
+	 * Creates a transport for the Google Directions API with the default
+	 * timeouts and concurrency
+	 */
+	public DirectionsTransport() {
+		this(DEFAULT_ENDPOINT, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT,
+				DEFAULT_MAX_CONCURRENT_REQUESTS);
+	}
+
+	/**
+	 * Creates a transport
+	 *
+	 * @param endpoint
+	 *            the URL that request parameters are appended to
+	 * @param connectTimeout
+	 *            how long to wait for a connection, in milliseconds
+	 * @param readTimeout
+	 *            how long to wait for data once connected, in milliseconds
+	 * @param maxConcurrentRequests
+	 *            the most fetches allowed at once, which is also the size of
+	 *            the connection pool and the worker pool
+	 */
+	public DirectionsTransport(String endpoint, int connectTimeout,
+			int readTimeout, int maxConcurrentRequests) {
+		if (maxConcurrentRequests < 1) {
+			throw new IllegalArgumentException(
+					"maxConcurrentRequests must be at least 1");
+		}
+		this.endpoint = endpoint;
+
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, "UTF-8");
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+		HttpConnectionParams.setSoTimeout(params, readTimeout);
+		ConnManagerParams.setMaxTotalConnections(params, maxConcurrentRequests);
+		ConnManagerParams.setMaxConnectionsPerRoute(params,
+				new ConnPerRouteBean(maxConcurrentRequests));
+		ConnManagerParams.setTimeout(params, connectTimeout);
+
+		SchemeRegistry schemes = new SchemeRegistry();
+		schemes.register(new Scheme("http", PlainSocketFactory
+				.getSocketFactory(), 80));
+		schemes.register(new Scheme("https", SSLSocketFactory
+				.getSocketFactory(), 443));
+		this.httpClient = new DefaultHttpClient(
+				new ThreadSafeClientConnManager(params, schemes), params);
+
+		this.permits = new Semaphore(maxConcurrentRequests, true);
+
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(
+				maxConcurrentRequests, maxConcurrentRequests, 30,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Directions #"
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		this.executor = pool;
+	}
+
+	/**
+	 * Return the transport shared by every MapDirection that was not given
+	 * one, creating it the first time it is needed
+	 *
+	 * @return the default transport
+	 */
+	public static synchronized DirectionsTransport getDefault() {
+		if (defaultTransport == null) {
+			defaultTransport = new DirectionsTransport();
+		}
+		return defaultTransport;
+	}
+
+	/**
+	 * Replace the shared transport, for example to change its timeouts or to
+	 * point it at a local server. The previous transport is not shut down.
+	 *
+	 * @param transport
+	 *            the new default transport
+	 */
+	public static synchronized void setDefault(DirectionsTransport transport) {
+		defaultTransport = transport;
+	}
+
+	/**
+	 * @return the URL that request parameters are appended to
+	 */
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 * Return the worker pool for running direction fetches in the
+	 * background. It has as many threads as the transport allows concurrent
+	 * requests, and queues the rest.
+	 *
+	 * @return the executor
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Performs a GET request for the endpoint with the given query string.
+	 * This blocks while the maximum number of requests are already open.
+	 * The connection is returned to the pool when the stream is closed, so
+	 * callers must always close it.
+	 *
+	 * @param query
+	 *            the URL-encoded request parameters, without a leading '?'
+	 * @return the decompressed response body
+	 * @throws IOException
+	 *             if the request fails or the server does not answer 200 OK
+	 */
+	public InputStream open(String query) throws IOException {
+		String url = endpoint + "?" + query;
+		Log.d("url", url);
+
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for a connection");
+		}
+
+		boolean opened = false;
+		try {
+			HttpGet httpGet = new HttpGet(url);
+			httpGet.addHeader("Accept-Encoding", "gzip");
+			HttpResponse response = httpClient.execute(httpGet);
+			HttpEntity entity = response.getEntity();
+			int status = response.getStatusLine().getStatusCode();
+			if (status != HttpStatus.SC_OK) {
+				if (entity != null) {
+					entity.consumeContent();
+				}
+				throw new IOException("Directions request failed with HTTP "
+						+ status);
+			}
+			if (entity == null) {
+				throw new IOException("Directions response has no body");
+			}
+
+			InputStream in = new ReleasingInputStream(entity);
+			// From here on, closing the stream releases the permit
+			opened = true;
+			Header encoding = entity.getContentEncoding();
+			if (encoding != null
+					&& "gzip".equalsIgnoreCase(encoding.getValue())) {
+				try {
+					in = new GZIPInputStream(in);
+				} catch (IOException e) {
+					in.close();
+					throw e;
+				}
+			}
+			return in;
+		} finally {
+			if (!opened) {
+				permits.release();
+			}
+		}
+	}
+
+	/**
+	 * Closes every pooled connection and stops the worker pool. The
+	 * transport cannot be used afterward.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+		httpClient.getConnectionManager().shutdown();
+	}
+
+	/**
+	 * A response body that hands its connection back to the pool, and its
+	 * permit back to the transport, when it is closed
+	 */
+	private class ReleasingInputStream extends FilterInputStream {
+		private final HttpEntity entity;
+		private boolean closed;
+
+		ReleasingInputStream(HttpEntity entity) throws IOException {
+			super(entity.getContent());
+			this.entity = entity;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				// Reading to the end lets the connection be kept alive
+				entity.consumeContent();
+			} catch (IOException e) {
+				Log.w(TAG, "Unable to release connection", e);
+			} finally {
+				permits.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package sofia.gps;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Coalesces concurrent requests for the same route. The first caller for a
+ * RouteKey performs the fetch; callers that arrive while it is running wait
+ * for it and receive the same RoutePoints instead of fetching again.
+ */
+class InFlightRoutes {
+
+	/**
+	 * Fetches a route on behalf of every caller waiting on its key
+	 */
+	interface Fetch {
+		/**
+		 * @return the route points, or null if they could not be fetched
+		 */
+		RoutePoints fetch();
+	}
+
+	// Fields
+	private final HashMap<RouteKey, Call> calls = new HashMap<RouteKey, Call>();
+	private long coalesced;
+
+	/**
+	 * Returns the route for key, fetching it only if no other thread is
+	 * already doing so. The result is shared between callers and must not be
+	 * modified.
+	 *
+	 * @param key
+	 * @param fetch
+	 *            run on the calling thread if this caller is the first
+	 * @return the route points, or null if the fetch failed or the waiting
+	 *         thread was interrupted
+	 */
+	RoutePoints get(RouteKey key, Fetch fetch) {
+		Call call;
+		boolean leader = false;
+		synchronized (calls) {
+			call = calls.get(key);
+			if (call == null) {
+				call = new Call();
+				calls.put(key, call);
+				leader = true;
+			} else {
+				coalesced++;
+			}
+		}
+
+		if (!leader) {
+			try {
+				call.done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			return call.result;
+		}
+
+		try {
+			call.result = fetch.fetch();
+		} finally {
+			synchronized (calls) {
+				calls.remove(key);
+			}
+			call.done.countDown();
+		}
+		return call.result;
+	}
+
+	/**
+	 * @return the number of requests that were answered by another caller's
+	 *         fetch
+	 */
+	long getCoalescedCount() {
+		synchronized (calls) {
+			return coalesced;
+		}
+	}
+
+	/**
+	 * A fetch in progress
+	 */
+	private static class Call {
+		final CountDownLatch done = new CountDownLatch(1);
+		// Written before done is counted down, which publishes it
+		RoutePoints result;
+	}
+}
@@ -0,0 +1,248 @@
+package sofia.gps;
+
+import android.location.Location;
+
+/**
+ * Smooths a stream of location fixes with a constant-velocity Kalman filter,
+ * removing most of the jitter of raw fixes while following real movement.
+ * Each fix is weighted by its reported accuracy, so a poor fix moves the
+ * estimate less than a good one. The filter also estimates velocity, which
+ * stays steady where the speed computed between raw fixes would not.
+ * </br></br>
+ * The estimate is kept on a local plane, in meters, around a recent fix. Its
+ * east and north components are filtered separately with the same
+ * covariance, so each update is a handful of arithmetic operations and
+ * allocates nothing. Pass a LocationFilter to
+ * {@link LocationTracker#setLocationFilter(LocationFilter)} to smooth the
+ * fixes handed to locationDidChange. It is not safe to use from more than one
+ * thread at a time.
+ */
+public class LocationFilter {
+
+	// Mean radius of the Earth, in meters
+	private static final double EARTH_RADIUS = 6371008.8;
+	// How far the estimate may drift from the origin of the plane before the
+	// plane is moved, in meters
+	private static final double RECENTER_DISTANCE = 50000;
+	// The accuracy assumed for fixes that do not report one, in meters
+	private static final float DEFAULT_ACCURACY = 30;
+
+	// Fields
+	// The variance of the acceleration allowed between fixes, in (m/s^2)^2
+	private double accelerationVariance;
+	private boolean initialized;
+	// The origin of the local plane and the meters per degree there
+	private double originLatitude, originLongitude;
+	private double metersPerDegreeLatitude, metersPerDegreeLongitude;
+	// Position, in meters from the origin, and velocity, in m/s, east and
+	// north
+	private double east, north, velocityEast, velocityNorth;
+	// The covariance of position and velocity, shared by both axes
+	private double p00, p01, p11;
+	private long time;
+
+	/**
+	 * Creates a filter that allows accelerations of about 3 m/s^2, which
+	 * suits walking and driving
+	 */
+	public LocationFilter() {
+		this(3);
+	}
+
+	/**
+	 * @param acceleration
+	 *            the typical acceleration between fixes, in m/s^2; higher
+	 *            values follow turns and stops more closely, lower values
+	 *            smooth more
+	 */
+	public LocationFilter(double acceleration) {
+		setAcceleration(acceleration);
+	}
+
+	/**
+	 * @return the typical acceleration between fixes, in m/s^2
+	 */
+	public double getAcceleration() {
+		return Math.sqrt(accelerationVariance);
+	}
+
+	/**
+	 * @param acceleration
+	 *            the typical acceleration between fixes, in m/s^2
+	 */
+	public void setAcceleration(double acceleration) {
+		accelerationVariance = acceleration * acceleration;
+	}
+
+	/**
+	 * Forgets the estimate, so the next fix starts a new one
+	 */
+	public void reset() {
+		initialized = false;
+	}
+
+	/**
+	 * Adds a fix to the estimate and replaces the fix's position with the
+	 * smoothed one. Its speed and bearing are replaced with the estimated
+	 * velocity, and its accuracy with that of the estimate.
+	 *
+	 * @param location
+	 *            the new fix, which is modified in place
+	 * @return location
+	 */
+	public Location filter(Location location) {
+		update(location.getLatitude(), location.getLongitude(),
+				location.hasAccuracy() ? location.getAccuracy()
+						: DEFAULT_ACCURACY, location.getTime());
+		location.setLatitude(getLatitude());
+		location.setLongitude(getLongitude());
+		location.setSpeed((float) getSpeed());
+		location.setBearing((float) getBearing());
+		location.setAccuracy((float) getAccuracy());
+		return location;
+	}
+
+	/**
+	 * Adds a fix to the estimate
+	 *
+	 * @param latitude
+	 * @param longitude
+	 * @param accuracy
+	 *            the accuracy of the fix, in meters
+	 * @param timeMillis
+	 *            when the fix was taken
+	 */
+	public void update(double latitude, double longitude, double accuracy,
+			long timeMillis) {
+		double variance = Math.max(1, accuracy * accuracy);
+		if (!initialized) {
+			setOrigin(latitude, longitude);
+			east = north = velocityEast = velocityNorth = 0;
+			p00 = variance;
+			p01 = 0;
+			// Nothing is known of the velocity yet; allow about 10 m/s
+			p11 = 100;
+			time = timeMillis;
+			initialized = true;
+			return;
+		}
+
+		double dt = (timeMillis - time) / 1000.0;
+		if (dt > 0) {
+			time = timeMillis;
+			predict(dt);
+		}
+
+		double dLongitude = longitude - originLongitude;
+		if (dLongitude > 180) {
+			dLongitude -= 360;
+		} else if (dLongitude < -180) {
+			dLongitude += 360;
+		}
+		double zEast = dLongitude * metersPerDegreeLongitude;
+		double zNorth = (latitude - originLatitude) * metersPerDegreeLatitude;
+		double s = p00 + variance;
+		double k0 = p00 / s, k1 = p01 / s;
+		double yEast = zEast - east, yNorth = zNorth - north;
+		east += k0 * yEast;
+		north += k0 * yNorth;
+		velocityEast += k1 * yEast;
+		velocityNorth += k1 * yNorth;
+		p11 -= k1 * p01;
+		p01 *= 1 - k0;
+		p00 *= 1 - k0;
+
+		if (Math.abs(east) > RECENTER_DISTANCE
+				|| Math.abs(north) > RECENTER_DISTANCE) {
+			setOrigin(getLatitude(), getLongitude());
+			east = north = 0;
+		}
+	}
+
+	/**
+	 * @return whether the filter has an estimate
+	 */
+	public boolean hasEstimate() {
+		return initialized;
+	}
+
+	/**
+	 * @return the estimated latitude
+	 */
+	public double getLatitude() {
+		return originLatitude + north / metersPerDegreeLatitude;
+	}
+
+	/**
+	 * @return the estimated longitude
+	 */
+	public double getLongitude() {
+		double longitude = originLongitude + east / metersPerDegreeLongitude;
+		if (longitude >= 180) {
+			longitude -= 360;
+		} else if (longitude < -180) {
+			longitude += 360;
+		}
+		return longitude;
+	}
+
+	/**
+	 * @return the estimated velocity towards the east, in m/s
+	 */
+	public double getVelocityEast() {
+		return velocityEast;
+	}
+
+	/**
+	 * @return the estimated velocity towards the north, in m/s
+	 */
+	public double getVelocityNorth() {
+		return velocityNorth;
+	}
+
+	/**
+	 * @return the estimated speed, in m/s
+	 */
+	public double getSpeed() {
+		return Math.sqrt(velocityEast * velocityEast + velocityNorth
+				* velocityNorth);
+	}
+
+	/**
+	 * @return the estimated direction of travel, in degrees clockwise from
+	 *         north
+	 */
+	public double getBearing() {
+		return (Math.toDegrees(Math.atan2(velocityEast, velocityNorth)) + 360) % 360;
+	}
+
+	/**
+	 * @return the standard deviation of the estimated position along each
+	 *         axis, in meters
+	 */
+	public double getAccuracy() {
+		return Math.sqrt(p00);
+	}
+
+	/**
+	 * Moves the estimate forward in time, assuming constant velocity with
+	 * random acceleration
+	 */
+	private void predict(double dt) {
+		east += velocityEast * dt;
+		north += velocityNorth * dt;
+		double dt2 = dt * dt;
+		double q = accelerationVariance;
+		p00 += dt * (2 * p01 + dt * p11) + q * dt2 * dt2 / 4;
+		p01 += dt * p11 + q * dt2 * dt / 2;
+		p11 += q * dt2;
+	}
+
+	private void setOrigin(double latitude, double longitude) {
+		originLatitude = latitude;
+		originLongitude = longitude;
+		metersPerDegreeLatitude = Math.toRadians(EARTH_RADIUS);
+		metersPerDegreeLongitude = metersPerDegreeLatitude
+				* Math.max(1E-6, Math.cos(Math.toRadians(latitude)));
+	}
+}
@@ -0,0 +1,18 @@
+package sofia.gps;
+
+/**
+ * Told when a LocationTracker changes its LocationRequest by itself, as it
+ * does in adaptive mode, so that location updates can be requested again
+ * with the new settings. MapScreen registers one with each LocationTracker
+ * passed to getLocationUpdates.
+ */
+public interface LocationRequestListener {
+
+	/**
+	 * Called after the tracker's LocationRequest has changed
+	 *
+	 * @param tracker
+	 *            the tracker whose request changed
+	 */
+	void locationRequestChanged(LocationTracker tracker);
+}
@@ -1,5 +1,8 @@
 package sofia.gps;
 
+import android.location.Location;
+import android.os.SystemClock;
+
 import com.google.android.gms.location.LocationRequest;
 
 /**
@@ -21,11 +24,52 @@ public class LocationTracker {
 	int numUpdates, priority;
 	float smallestDisplacementMeters;
 
+	// How fixes are batched before they are handed to locationDidChange
+	long batchFlushInterval;
+	int batchSize;
+	boolean latestFixOnly;
+
+	// Drops bad and repeated fixes before anything else sees them, or null
+	LocationValidator locationValidator;
+	// Records the fixes handed to locationDidChange, or null
+	TrackRecorder trackRecorder;
+	// Smooths fixes before they are handed to locationDidChange, or null
+	LocationFilter locationFilter;
+
+	// Adaptive mode: the priority and interval of each motion profile, the
+	// profile in use and the candidate that may replace it
+	boolean adaptive;
+	final int[] profilePriorities = { PRIORITY_BALANCED_POWER_ACCURACY,
+			PRIORITY_HIGH_ACCURACY, PRIORITY_HIGH_ACCURACY };
+	final long[] profileIntervals = { 60000, 10000, 2000 };
+	int profile = PROFILE_WALKING, candidateProfile = PROFILE_WALKING;
+	int candidateFixes, profileSwitchFixes = 2, profileSwitchCount;
+	// The smoothed speed in m/s and the fix it was last updated from
+	float observedSpeed;
+	Location lastObserved;
+	// The priority and interval in use before adaptive mode was turned on
+	int savedPriority;
+	long savedInterval;
+	// Told when adaptive mode changes the request, or null
+	LocationRequestListener requestListener;
+	// Time spent in each profile before the current one began, in ms
+	final long[] profileTimes = new long[3];
+	long profileSince;
+
 	// Constants used to specify options for Google Maps API V2
 	public static final int PRIORITY_BALANCED_POWER_ACCURACY = 102,
 			PRIORITY_HIGH_ACCURACY = 100, PRIORITY_LOW_POWER = 104,
 			PRIORITY_NO_POWER = 105;
 
+	// Motion profiles used in adaptive mode
+	public static final int PROFILE_STATIONARY = 0, PROFILE_WALKING = 1,
+			PROFILE_DRIVING = 2;
+
+	// Speeds, in m/s, above which a faster profile is entered and below which
+	// it is left again; the gaps keep the profile from flapping near a limit
+	private static final float ENTER_WALKING = 0.8f, LEAVE_WALKING = 0.4f,
+			ENTER_DRIVING = 4.5f, LEAVE_DRIVING = 3.0f;
+
 	//Constructor
 	public LocationTracker() {
 		locationRequest = LocationRequest.create();
@@ -235,4 +279,397 @@ public class LocationTracker {
 				.setSmallestDisplacement(smallestDisplacementMeters);
 	}
 
-}
\ No newline at end of file
+	/**
+	 * @return whether fixes are batched before they are handed to
+	 *         locationDidChange
+	 */
+	public boolean isBatching() {
+		return batchFlushInterval > 0 || batchSize > 1;
+	}
+
+	/**
+	 * @return the batchFlushInterval
+	 */
+	public long getBatchFlushInterval() {
+		return batchFlushInterval;
+	}
+
+	/**
+	 * Set how long fixes are buffered before they are handed over, in
+	 * milliseconds. </br></br> While batching, locationDidChange(List
+	 * locations) is called with the fixes received since the last batch, in
+	 * the order they arrived, once this long has passed since the first of
+	 * them or once there are getBatchSize() of them, whichever comes first.
+	 * </br></br> By default this is 0, which hands fixes over as they arrive
+	 * unless a batch size is set.
+	 * 
+	 * @param batchFlushInterval
+	 *            the longest a fix is buffered, in milliseconds
+	 */
+	public void setBatchFlushInterval(long batchFlushInterval) {
+		this.batchFlushInterval = batchFlushInterval;
+	}
+
+	/**
+	 * @return the batchSize
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Set the number of fixes that are handed over together. A batch is also
+	 * handed over early when getBatchFlushInterval() has passed. </br></br>
+	 * By default this is 0, which does not limit the size of a batch.
+	 * 
+	 * @param batchSize
+	 *            the number of fixes in a full batch
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return the latestFixOnly
+	 */
+	public boolean isLatestFixOnly() {
+		return latestFixOnly;
+	}
+
+	/**
+	 * Set whether only the latest fix of each batch is handed over, with
+	 * locationDidChange(Location location), and the rest are dropped. This
+	 * suits handlers that only show where the user is now.
+	 * </br></br>
+	 * By default this is false.
+	 * 
+	 * @param latestFixOnly
+	 *            whether to hand over only the latest fix of each batch
+	 */
+	public void setLatestFixOnly(boolean latestFixOnly) {
+		this.latestFixOnly = latestFixOnly;
+	}
+
+	/**
+	 * @return the locationValidator
+	 */
+	public LocationValidator getLocationValidator() {
+		return locationValidator;
+	}
+
+	/**
+	 * Set a validator that drops inaccurate, impossible and repeated fixes
+	 * before they are smoothed, observed or handed to locationDidChange.
+	 * </br></br> By default there is no validator.
+	 * 
+	 * @param locationValidator
+	 *            the validator, such as new LocationValidator(), or null to
+	 *            keep every fix
+	 */
+	public void setLocationValidator(LocationValidator locationValidator) {
+		this.locationValidator = locationValidator;
+	}
+
+	/**
+	 * @return the locationFilter
+	 */
+	public LocationFilter getLocationFilter() {
+		return locationFilter;
+	}
+
+	/**
+	 * Set a filter that smooths fixes before they are handed to
+	 * locationDidChange. The Location objects handed over then hold the
+	 * smoothed position, and their speed and bearing hold the estimated
+	 * velocity. Adaptive mode also observes the smoothed fixes. </br></br> By
+	 * default there is no filter.
+	 * 
+	 * @param locationFilter
+	 *            the filter, such as new LocationFilter(), or null for raw
+	 *            fixes
+	 */
+	public void setLocationFilter(LocationFilter locationFilter) {
+		this.locationFilter = locationFilter;
+	}
+
+	/**
+	 * @return the trackRecorder
+	 */
+	public TrackRecorder getTrackRecorder() {
+		return trackRecorder;
+	}
+
+	/**
+	 * Set a recorder that appends every fix handed to locationDidChange to a
+	 * track file, after it is validated and smoothed. The recorder is not
+	 * closed when location updates stop; close it when the track is done. If
+	 * writing fails, recording stops and the recorder is removed. </br></br>
+	 * By default there is no recorder.
+	 * 
+	 * @param trackRecorder
+	 *            the recorder, or null to stop recording
+	 */
+	public void setTrackRecorder(TrackRecorder trackRecorder) {
+		this.trackRecorder = trackRecorder;
+	}
+
+	/**
+	 * @return whether the priority and interval adapt to how fast the user
+	 *         is moving
+	 */
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	/**
+	 * Set whether the priority and interval adapt to how fast the user is
+	 * moving. </br></br> In adaptive mode, the speed and displacement of each
+	 * fix are observed to tell whether the user is stationary, walking or
+	 * driving, and the priority and interval of the matching profile are used,
+	 * so that the battery is not spent on fast, accurate fixes while the user
+	 * stands still. A new profile is only used once it has matched
+	 * getProfileSwitchFixes() fixes in a row, and MapScreen only re-issues the
+	 * request when the profile changes. </br></br> Adaptive mode starts with
+	 * PROFILE_WALKING. Turning it off restores the priority and interval in
+	 * use before it was turned on. Either way, location updates already
+	 * requested from MapScreen switch to the new settings at once. By default
+	 * it is off.
+	 * 
+	 * @param adaptive
+	 *            whether to adapt to the user's motion
+	 */
+	public void setAdaptive(boolean adaptive) {
+		if (adaptive == this.adaptive) {
+			return;
+		}
+		if (adaptive) {
+			savedPriority = locationRequest.getPriority();
+			savedInterval = locationRequest.getInterval();
+			resetProfileStats();
+			profile = candidateProfile = PROFILE_WALKING;
+			candidateFixes = 0;
+			observedSpeed = 0;
+			lastObserved = null;
+			this.adaptive = true;
+			applyProfile();
+		} else {
+			// Keep the time spent in the last profile
+			profileTimes[profile] += SystemClock.elapsedRealtime()
+					- profileSince;
+			this.adaptive = false;
+			setPriority(savedPriority);
+			setInterval(savedInterval);
+			notifyRequestChanged();
+		}
+	}
+
+	/**
+	 * Set the listener told when adaptive mode changes the LocationRequest.
+	 * MapScreen sets this itself in getLocationUpdates.
+	 * 
+	 * @param requestListener
+	 *            the listener, or null
+	 */
+	public void setLocationRequestListener(
+			LocationRequestListener requestListener) {
+		this.requestListener = requestListener;
+	}
+
+	/**
+	 * @return the listener told when adaptive mode changes the
+	 *         LocationRequest, or null
+	 */
+	public LocationRequestListener getLocationRequestListener() {
+		return requestListener;
+	}
+
+	/**
+	 * Set the priority and interval used for a motion profile in adaptive
+	 * mode. The defaults are PRIORITY_BALANCED_POWER_ACCURACY every 60
+	 * seconds when stationary, PRIORITY_HIGH_ACCURACY every 10 seconds when
+	 * walking and PRIORITY_HIGH_ACCURACY every 2 seconds when driving.
+	 * 
+	 * @param profile
+	 *            a profile constant such as PROFILE_WALKING
+	 * @param priority
+	 *            an accuracy or power constant
+	 * @param interval
+	 *            desired interval in milliseconds, inexact
+	 */
+	public void setProfile(int profile, int priority, long interval) {
+		profilePriorities[profile] = priority;
+		profileIntervals[profile] = interval;
+		if (adaptive && profile == this.profile) {
+			applyProfile();
+		}
+	}
+
+	/**
+	 * @param profile
+	 *            a profile constant such as PROFILE_WALKING
+	 * @return the priority used for the profile
+	 */
+	public int getProfilePriority(int profile) {
+		return profilePriorities[profile];
+	}
+
+	/**
+	 * @param profile
+	 *            a profile constant such as PROFILE_WALKING
+	 * @return the interval used for the profile, in milliseconds
+	 */
+	public long getProfileInterval(int profile) {
+		return profileIntervals[profile];
+	}
+
+	/**
+	 * @return the profileSwitchFixes
+	 */
+	public int getProfileSwitchFixes() {
+		return profileSwitchFixes;
+	}
+
+	/**
+	 * Set how many fixes in a row must match a new profile before it is used.
+	 * </br></br> By default this is 2.
+	 * 
+	 * @param profileSwitchFixes
+	 *            the number of fixes, at least 1
+	 */
+	public void setProfileSwitchFixes(int profileSwitchFixes) {
+		this.profileSwitchFixes = Math.max(1, profileSwitchFixes);
+	}
+
+	/**
+	 * @return the motion profile in use, such as PROFILE_WALKING
+	 */
+	public int getProfile() {
+		return profile;
+	}
+
+	/**
+	 * @return the smoothed speed observed across recent fixes, in m/s
+	 */
+	public float getObservedSpeed() {
+		return observedSpeed;
+	}
+
+	/**
+	 * @param profile
+	 *            a profile constant such as PROFILE_WALKING
+	 * @return how long adaptive mode has spent in the profile since it was
+	 *         turned on or the statistics were reset, in milliseconds
+	 */
+	public long getTimeInProfile(int profile) {
+		long time = profileTimes[profile];
+		if (adaptive && profile == this.profile) {
+			time += SystemClock.elapsedRealtime() - profileSince;
+		}
+		return time;
+	}
+
+	/**
+	 * @return how many times adaptive mode has changed profile since it was
+	 *         turned on or the statistics were reset
+	 */
+	public int getProfileSwitchCount() {
+		return profileSwitchCount;
+	}
+
+	/**
+	 * Reset the time spent in each profile and the number of profile changes
+	 */
+	public void resetProfileStats() {
+		for (int i = 0; i < profileTimes.length; i++) {
+			profileTimes[i] = 0;
+		}
+		profileSwitchCount = 0;
+		profileSince = SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Observe a fix in adaptive mode, changing the profile if the user's
+	 * motion has changed. Called by MapScreen for each fix it receives.
+	 * 
+	 * @param location
+	 *            the new fix
+	 * @return true if the profile changed, in which case the
+	 *         LocationRequestListener has been told
+	 */
+	public boolean observe(Location location) {
+		if (!adaptive) {
+			return false;
+		}
+		float speed;
+		if (location.hasSpeed()) {
+			speed = location.getSpeed();
+		} else if (lastObserved != null
+				&& location.getTime() > lastObserved.getTime()) {
+			// Movement within the accuracy of the fixes is only noise
+			float distance = location.distanceTo(lastObserved)
+					- Math.max(location.getAccuracy(),
+							lastObserved.getAccuracy());
+			speed = Math.max(0, distance) * 1000
+					/ (location.getTime() - lastObserved.getTime());
+		} else {
+			speed = observedSpeed;
+		}
+		observedSpeed = lastObserved == null ? speed : observedSpeed * 0.5f
+				+ speed * 0.5f;
+		lastObserved = location;
+
+		int next = classify(observedSpeed);
+		if (next == profile) {
+			candidateFixes = 0;
+			return false;
+		}
+		if (next != candidateProfile) {
+			candidateProfile = next;
+			candidateFixes = 0;
+		}
+		if (++candidateFixes < profileSwitchFixes) {
+			return false;
+		}
+		long now = SystemClock.elapsedRealtime();
+		profileTimes[profile] += now - profileSince;
+		profileSince = now;
+		profileSwitchCount++;
+		profile = next;
+		candidateFixes = 0;
+		applyProfile();
+		return true;
+	}
+
+	/**
+	 * @return the profile a speed calls for, given the profile in use
+	 */
+	private int classify(float speed) {
+		switch (profile) {
+		case PROFILE_STATIONARY:
+			return speed > ENTER_DRIVING ? PROFILE_DRIVING
+					: speed > ENTER_WALKING ? PROFILE_WALKING
+							: PROFILE_STATIONARY;
+		case PROFILE_DRIVING:
+			return speed < LEAVE_WALKING ? PROFILE_STATIONARY
+					: speed < LEAVE_DRIVING ? PROFILE_WALKING
+							: PROFILE_DRIVING;
+		default:
+			return speed > ENTER_DRIVING ? PROFILE_DRIVING
+					: speed < LEAVE_WALKING ? PROFILE_STATIONARY
+							: PROFILE_WALKING;
+		}
+	}
+
+	private void applyProfile() {
+		setPriority(profilePriorities[profile]);
+		setInterval(profileIntervals[profile]);
+		notifyRequestChanged();
+	}
+
+	private void notifyRequestChanged() {
+		if (requestListener != null) {
+			requestListener.locationRequestChanged(this);
+		}
+	}
+
+}
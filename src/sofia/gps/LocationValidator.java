@@ -0,0 +1,242 @@
+package sofia.gps;
+
+import android.location.Location;
+
+/**
+ * Drops location fixes that should not reach locationDidChange: fixes that
+ * are too inaccurate, fixes that imply an impossible speed, such as a cell
+ * tower fallback hundreds of meters from the last fix, and fixes that repeat
+ * the last one. Each dropped fix is counted by the reason it was dropped, so
+ * the limits can be tuned against recorded tracks.
+ * </br></br>
+ * Fixes are compared with the last fix accepted. If several fixes in a row
+ * imply an impossible speed, the last accepted fix was most likely the bad
+ * one, so the next fix is accepted and comparisons start again from it.
+ * Pass a LocationValidator to
+ * {@link LocationTracker#setLocationValidator(LocationValidator)} to check
+ * the fixes MapScreen receives. It is not safe to use from more than one
+ * thread at a time.
+ */
+public class LocationValidator {
+
+	// Results of check(Location), which are also the reasons fixes are
+	// dropped
+	public static final int ACCEPTED = 0, REJECTED_ACCURACY = 1,
+			REJECTED_SPEED = 2, REJECTED_DUPLICATE = 3, REJECTED_STALE = 4;
+
+	// Fields
+	private float maxAccuracy = 100;
+	private float maxSpeed = 70;
+	private float duplicateDistance = 1;
+	private long duplicateInterval = 5000;
+	private int maxSpeedRejections = 3;
+	// The last fix accepted
+	private boolean hasLast;
+	private double lastLatitude, lastLongitude;
+	private float lastAccuracy;
+	private long lastTime;
+	private int speedRejections;
+	private final long[] counts = new long[5];
+	private final float[] distance = new float[1];
+
+	/**
+	 * @return the maxAccuracy
+	 */
+	public float getMaxAccuracy() {
+		return maxAccuracy;
+	}
+
+	/**
+	 * Set the worst accuracy a fix may report, in meters. </br></br> By
+	 * default this is 100.
+	 *
+	 * @param maxAccuracy
+	 *            the largest accepted accuracy radius, or 0 to accept any
+	 */
+	public void setMaxAccuracy(float maxAccuracy) {
+		this.maxAccuracy = maxAccuracy;
+	}
+
+	/**
+	 * @return the maxSpeed
+	 */
+	public float getMaxSpeed() {
+		return maxSpeed;
+	}
+
+	/**
+	 * Set the fastest speed the user can move, in m/s. A fix farther from
+	 * the last accepted fix than this speed allows, beyond the accuracy of
+	 * both fixes, is dropped. </br></br> By default this is 70, about 250
+	 * km/h.
+	 *
+	 * @param maxSpeed
+	 *            the fastest possible speed, or 0 to accept any
+	 */
+	public void setMaxSpeed(float maxSpeed) {
+		this.maxSpeed = maxSpeed;
+	}
+
+	/**
+	 * @return the duplicateDistance
+	 */
+	public float getDuplicateDistance() {
+		return duplicateDistance;
+	}
+
+	/**
+	 * Set how close, in meters, a fix must be to the last accepted fix to be
+	 * a duplicate of it. Fixes are only duplicates if they also arrive within
+	 * getDuplicateInterval() of it, so a user standing still still gets
+	 * occasional fixes. </br></br> By default this is 1.
+	 *
+	 * @param duplicateDistance
+	 *            the distance in meters, or 0 to only drop exact duplicates
+	 */
+	public void setDuplicateDistance(float duplicateDistance) {
+		this.duplicateDistance = duplicateDistance;
+	}
+
+	/**
+	 * @return the duplicateInterval
+	 */
+	public long getDuplicateInterval() {
+		return duplicateInterval;
+	}
+
+	/**
+	 * Set how soon, in milliseconds, after the last accepted fix a fix close
+	 * to it is a duplicate. </br></br> By default this is 5000.
+	 *
+	 * @param duplicateInterval
+	 *            the interval in milliseconds
+	 */
+	public void setDuplicateInterval(long duplicateInterval) {
+		this.duplicateInterval = duplicateInterval;
+	}
+
+	/**
+	 * @return the maxSpeedRejections
+	 */
+	public int getMaxSpeedRejections() {
+		return maxSpeedRejections;
+	}
+
+	/**
+	 * Set how many fixes in a row may be dropped for their speed before the
+	 * next one is accepted anyway, in case the last accepted fix was the bad
+	 * one. </br></br> By default this is 3.
+	 *
+	 * @param maxSpeedRejections
+	 *            the number of fixes
+	 */
+	public void setMaxSpeedRejections(int maxSpeedRejections) {
+		this.maxSpeedRejections = maxSpeedRejections;
+	}
+
+	/**
+	 * Checks a fix, counting it as accepted or dropped
+	 *
+	 * @param location
+	 *            the new fix
+	 * @return true if the fix should be used
+	 */
+	public boolean accept(Location location) {
+		return check(location) == ACCEPTED;
+	}
+
+	/**
+	 * Checks a fix, counting it as accepted or dropped
+	 *
+	 * @param location
+	 *            the new fix
+	 * @return ACCEPTED, or the reason the fix should be dropped, such as
+	 *         REJECTED_SPEED
+	 */
+	public int check(Location location) {
+		int result = evaluate(location);
+		counts[result]++;
+		if (result == ACCEPTED) {
+			hasLast = true;
+			lastLatitude = location.getLatitude();
+			lastLongitude = location.getLongitude();
+			lastAccuracy = location.getAccuracy();
+			lastTime = location.getTime();
+			speedRejections = 0;
+		} else if (result == REJECTED_SPEED) {
+			speedRejections++;
+		}
+		return result;
+	}
+
+	private int evaluate(Location location) {
+		if (maxAccuracy > 0 && location.hasAccuracy()
+				&& location.getAccuracy() > maxAccuracy) {
+			return REJECTED_ACCURACY;
+		}
+		if (!hasLast) {
+			return ACCEPTED;
+		}
+		long elapsed = location.getTime() - lastTime;
+		Location.distanceBetween(lastLatitude, lastLongitude,
+				location.getLatitude(), location.getLongitude(), distance);
+		if (elapsed < duplicateInterval && distance[0] <= duplicateDistance) {
+			return REJECTED_DUPLICATE;
+		}
+		if (elapsed <= 0) {
+			return REJECTED_STALE;
+		}
+		if (maxSpeed > 0 && speedRejections < maxSpeedRejections) {
+			float uncertain = location.getAccuracy() + lastAccuracy;
+			if (distance[0] - uncertain > maxSpeed * elapsed / 1000f) {
+				return REJECTED_SPEED;
+			}
+		}
+		return ACCEPTED;
+	}
+
+	/**
+	 * @return the number of fixes accepted
+	 */
+	public long getAcceptedCount() {
+		return counts[ACCEPTED];
+	}
+
+	/**
+	 * @param reason
+	 *            a reason such as REJECTED_SPEED
+	 * @return the number of fixes dropped for the reason
+	 */
+	public long getRejectedCount(int reason) {
+		return reason == ACCEPTED ? 0 : counts[reason];
+	}
+
+	/**
+	 * @return the number of fixes dropped for any reason
+	 */
+	public long getRejectedCount() {
+		long total = 0;
+		for (int i = 1; i < counts.length; i++) {
+			total += counts[i];
+		}
+		return total;
+	}
+
+	/**
+	 * Resets the counts of accepted and dropped fixes
+	 */
+	public void resetCounts() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = 0;
+		}
+	}
+
+	/**
+	 * Forgets the last accepted fix, so the next fix is only checked for its
+	 * accuracy. Use it when starting a new track.
+	 */
+	public void reset() {
+		hasLast = false;
+		speedRejections = 0;
+	}
+}
@@ -1,22 +1,19 @@
 package sofia.gps;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.HttpContext;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
-import android.util.Log;
+import android.util.Xml;
 
 import com.google.android.gms.maps.model.LatLng;
 
@@ -29,13 +26,49 @@ import com.google.android.gms.maps.model.LatLng;
  * @author Cameron Wyatt
  * @aut0hor Tyler Lenig
  */
-public class MapDirection {
+public class MapDirection implements DirectionsProvider {
 	//Constants used to specify mode of travel when getting LatLng points for route
 	public final static String MODE_DRIVING = "driving";
 	public final static String MODE_WALKING = "walking";
 
+	// Requests without a RouteCache are only coalesced when their endpoints
+	// are identical to within about a millimeter
+	private final static int EXACT_PRECISION = 8;
+
+	// Route point requests currently being fetched, shared by every
+	// MapDirection
+	private final static InFlightRoutes inFlight = new InFlightRoutes();
+
+	// Consulted before, and filled after, each request for route points
+	private final RouteCache routeCache;
+	// Performs the HTTP requests
+	private final DirectionsTransport transport;
+
 	//Constructor
 	public MapDirection() {
+		this(null);
+	}
+
+	/**
+	 * Creates a MapDirection whose route point requests are answered from,
+	 * and saved to, the given cache
+	 * 
+	 * @param routeCache the cache to use, or null to always use the network
+	 */
+	public MapDirection(RouteCache routeCache) {
+		this(routeCache, null);
+	}
+
+	/**
+	 * Creates a MapDirection that uses the given cache and transport
+	 * 
+	 * @param routeCache the cache to use, or null to always use the network
+	 * @param transport the transport to make requests with, or null for
+	 *            {@link DirectionsTransport#getDefault()}
+	 */
+	public MapDirection(RouteCache routeCache, DirectionsTransport transport) {
+		this.routeCache = routeCache;
+		this.transport = transport;
 	}
 
 	/**
@@ -48,27 +81,172 @@ public class MapDirection {
 	 * @return A Document object containing the HttpResponse
 	 */
 	public Document getDocument(LatLng start, LatLng end, String mode) {
-		String url = "http://maps.googleapis.com/maps/api/directions/xml?"
-				+ "origin=" + start.latitude + "," + start.longitude
-				+ "&destination=" + end.latitude + "," + end.longitude
-				+ "&sensor=false&units=metric&mode=" + mode;
-		Log.d("url", url);
+		InputStream in = null;
 		try {
-			HttpClient httpClient = new DefaultHttpClient();
-			HttpContext localContext = new BasicHttpContext();
-			HttpPost httpPost = new HttpPost(url);
-			HttpResponse response = httpClient.execute(httpPost, localContext);
-			InputStream in = response.getEntity().getContent();
+			in = openResponse(start, end, mode);
 			DocumentBuilder builder = DocumentBuilderFactory.newInstance()
 					.newDocumentBuilder();
 			Document doc = builder.parse(in);
 			return doc;
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			closeQuietly(in);
 		}
 		return null;
 	}
 
+	/**
+	 * Requests the route from start to end and parses the response as it
+	 * streams in, without building a Document
+	 * 
+	 * @param start The LatLng point that is the starting location
+	 * @param end The LatLng point that is the ending location
+	 * @param mode Either {@link MODE_DRIVING} or {@link MODE_WALKING}
+	 * @return the points needed to overlay the route on a map, or null if the
+	 *         request or parse failed
+	 */
+	public ArrayList<LatLng> getDirection(LatLng start, LatLng end, String mode) {
+		RoutePoints points = getRoutePoints(start, end, mode, new RoutePoints());
+		return points == null ? null : new ArrayList<LatLng>(points.asList());
+	}
+
+	/**
+	 * Requests the route from start to end and streams its points into a
+	 * RoutePoints buffer, without creating an object per point. If this
+	 * MapDirection has a RouteCache, a cached route is used instead of the
+	 * network when there is one, and a fetched route is added to the cache.
+	 * Concurrent requests for the same route, from any MapDirection, share a
+	 * single network call.
+	 * 
+	 * @param start The LatLng point that is the starting location
+	 * @param end The LatLng point that is the ending location
+	 * @param mode Either {@link MODE_DRIVING} or {@link MODE_WALKING}
+	 * @param out the buffer the points are appended to
+	 * @return out, or null if the request or parse failed
+	 */
+	public RoutePoints getRoutePoints(LatLng start, LatLng end, String mode,
+			RoutePoints out) {
+		return getPoints(start, end, mode, false, out);
+	}
+
+	/**
+	 * Requests the route from start to end and streams only its coarse
+	 * overview polyline into a RoutePoints buffer. This skips decoding every
+	 * step, so it is much cheaper than {@link #getRoutePoints(LatLng, LatLng,
+	 * String, RoutePoints)} and suits previews. Overviews are cached and
+	 * coalesced separately from full routes.
+	 * 
+	 * @param start The LatLng point that is the starting location
+	 * @param end The LatLng point that is the ending location
+	 * @param mode Either {@link MODE_DRIVING} or {@link MODE_WALKING}
+	 * @param out the buffer the points are appended to
+	 * @return out, or null if the request or parse failed
+	 */
+	public RoutePoints getOverviewPoints(LatLng start, LatLng end,
+			String mode, RoutePoints out) {
+		return getPoints(start, end, mode, true, out);
+	}
+
+	/**
+	 * Looks a route up in the cache, or fetches it, sharing the fetch with
+	 * any identical request already in flight
+	 * 
+	 * @param start The LatLng point that is the starting location
+	 * @param end The LatLng point that is the ending location
+	 * @param mode Either {@link MODE_DRIVING} or {@link MODE_WALKING}
+	 * @param overview whether to read only the overview polyline
+	 * @param out the buffer the points are appended to
+	 * @return out, or null if the request or parse failed
+	 */
+	private RoutePoints getPoints(final LatLng start, final LatLng end,
+			final String mode, final boolean overview, RoutePoints out) {
+		final RouteKey key;
+		if (routeCache != null) {
+			key = routeCache.keyFor(start, end, mode, overview);
+			RoutePoints cached = routeCache.get(key);
+			if (cached != null) {
+				out.addAll(cached);
+				return out;
+			}
+		} else {
+			key = new RouteKey(start, end, mode, EXACT_PRECISION, overview);
+		}
+
+		RoutePoints fetched = inFlight.get(key, new InFlightRoutes.Fetch() {
+			public RoutePoints fetch() {
+				// Another request may have finished between the cache miss
+				// and this one becoming the fetching request
+				RoutePoints cached = routeCache == null ? null : routeCache
+						.get(key);
+				if (cached != null) {
+					return cached;
+				}
+				RoutePoints points = fetchPoints(start, end, mode, overview);
+				if (points != null && routeCache != null) {
+					routeCache.put(key, points);
+				}
+				return points;
+			}
+		});
+		if (fetched == null) {
+			return null;
+		}
+		out.addAll(fetched);
+		return out;
+	}
+
+	/**
+	 * @return the number of route point requests, across every MapDirection,
+	 *         that were answered by an identical request already in flight
+	 */
+	public static long getCoalescedRequestCount() {
+		return inFlight.getCoalescedCount();
+	}
+
+	/**
+	 * Requests the route from start to end from the network
+	 * 
+	 * @param start The LatLng point that is the starting location
+	 * @param end The LatLng point that is the ending location
+	 * @param mode Either {@link MODE_DRIVING} or {@link MODE_WALKING}
+	 * @param overview whether to read only the overview polyline
+	 * @return the route points, or null if the request or parse failed
+	 */
+	private RoutePoints fetchPoints(LatLng start, LatLng end, String mode,
+			boolean overview) {
+		InputStream in = null;
+		try {
+			in = openResponse(start, end, mode);
+			return overview ? getOverviewPoints(in, new RoutePoints())
+					: getRoutePoints(in, new RoutePoints());
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			closeQuietly(in);
+		}
+		return null;
+	}
+
+	/**
+	 * Opens the Directions API response for the route from start to end
+	 * 
+	 * @param start The LatLng point that is the starting location
+	 * @param end The LatLng point that is the ending location
+	 * @param mode Either {@link MODE_DRIVING} or {@link MODE_WALKING}
+	 * @return the body of the HttpResponse
+	 * @throws IOException if the request fails
+	 */
+	private InputStream openResponse(LatLng start, LatLng end, String mode)
+			throws IOException {
+		String query = "origin=" + start.latitude + "," + start.longitude
+				+ "&destination=" + end.latitude + "," + end.longitude
+				+ "&sensor=false&units=metric&mode=" + mode;
+		DirectionsTransport http = transport != null ? transport
+				: DirectionsTransport.getDefault();
+		return http.open(query);
+	}
+
 	/**
 	 * Returns an ArrayList of LatLng points that are the points needed to overlay the route on a map
 	 * @param doc
@@ -77,6 +255,7 @@ public class MapDirection {
 	public ArrayList<LatLng> getDirection(Document doc) {
 		NodeList nl1, nl2, nl3;
 		ArrayList<LatLng> listGeopoints = new ArrayList<LatLng>();
+		RoutePoints poly = new RoutePoints();
 		nl1 = doc.getElementsByTagName("step");
 		if (nl1.getLength() > 0) {
 			for (int i = 0; i < nl1.getLength(); i++) {
@@ -95,11 +274,9 @@ public class MapDirection {
 				locationNode = nl2.item(getNodeIndex(nl2, "polyline"));
 				nl3 = locationNode.getChildNodes();
 				latNode = nl3.item(getNodeIndex(nl3, "points"));
-				ArrayList<LatLng> arr = decodePoly(latNode.getTextContent());
-				for (int j = 0; j < arr.size(); j++) {
-					listGeopoints.add(new LatLng(arr.get(j).latitude, arr
-							.get(j).longitude));
-				}
+				poly.clear();
+				decodePoly(latNode.getTextContent(), poly);
+				listGeopoints.addAll(poly.asList());
 
 				locationNode = nl2.item(getNodeIndex(nl2, "end_location"));
 				nl3 = locationNode.getChildNodes();
@@ -114,6 +291,198 @@ public class MapDirection {
 		return listGeopoints;
 	}
 
+	/**
+	 * Returns the same points as {@link #getDirection(Document)}, but reads
+	 * them in a single pass straight from a Directions API XML response
+	 * instead of from a Document. Each step contributes its start_location,
+	 * its decoded polyline and its end_location, in that order, and steps are
+	 * emitted in document order.
+	 * 
+	 * @param in the XML response body; it is not closed by this method
+	 * @return the points needed to overlay the route on a map
+	 * @throws XmlPullParserException if the response is malformed or a step is
+	 *             missing one of its locations
+	 * @throws IOException if the stream cannot be read
+	 */
+	public ArrayList<LatLng> getDirection(InputStream in)
+			throws XmlPullParserException, IOException {
+		RoutePoints points = getRoutePoints(in, new RoutePoints());
+		return new ArrayList<LatLng>(points.asList());
+	}
+
+	/**
+	 * Streams the points of a Directions API XML response into a RoutePoints
+	 * buffer. The points are the same, and in the same order, as those
+	 * returned by {@link #getDirection(InputStream)}.
+	 * 
+	 * @param in the XML response body; it is not closed by this method
+	 * @param out the buffer the points are appended to
+	 * @return out
+	 * @throws XmlPullParserException if the response is malformed or a step is
+	 *             missing one of its locations
+	 * @throws IOException if the stream cannot be read
+	 */
+	public RoutePoints getRoutePoints(InputStream in, RoutePoints out)
+			throws XmlPullParserException, IOException {
+		XmlPullParser parser = Xml.newPullParser();
+		parser.setInput(in, null);
+
+		ArrayList<StepFrame> open = new ArrayList<StepFrame>();
+		StepFrame step = null;
+
+		int event = parser.getEventType();
+		while (event != XmlPullParser.END_DOCUMENT) {
+			if (event == XmlPullParser.START_TAG) {
+				String name = parser.getName();
+				int depth = parser.getDepth();
+				if ("step".equals(name)) {
+					step = new StepFrame(depth);
+					open.add(step);
+				} else if (step != null && depth == step.depth + 1) {
+					step.child = name;
+				} else if (step != null && depth == step.depth + 2
+						&& step.child != null) {
+					// nextText() leaves the parser on the matching END_TAG
+					step.read(step.child, name, parser);
+				}
+			} else if (event == XmlPullParser.END_TAG && step != null) {
+				int depth = parser.getDepth();
+				if (depth == step.depth) {
+					open.remove(open.size() - 1);
+					StepFrame parent = open.isEmpty() ? null : open
+							.get(open.size() - 1);
+					step.emit(parent == null ? out : parent.nested());
+					step = parent;
+				} else if (depth == step.depth + 1) {
+					step.child = null;
+				}
+			}
+			event = parser.next();
+		}
+
+		return out;
+	}
+
+	/**
+	 * Streams the overview polyline of the first route in a Directions API
+	 * XML response into a RoutePoints buffer. The steps are skipped without
+	 * being decoded, and parsing stops as soon as the overview has been read.
+	 * 
+	 * @param in the XML response body; it is not closed by this method
+	 * @param out the buffer the points are appended to
+	 * @return out, which is left unchanged if the response has no route
+	 * @throws XmlPullParserException if the response is malformed
+	 * @throws IOException if the stream cannot be read
+	 */
+	public RoutePoints getOverviewPoints(InputStream in, RoutePoints out)
+			throws XmlPullParserException, IOException {
+		XmlPullParser parser = Xml.newPullParser();
+		parser.setInput(in, null);
+
+		int overviewDepth = -1;
+		int event = parser.getEventType();
+		while (event != XmlPullParser.END_DOCUMENT) {
+			if (event == XmlPullParser.START_TAG) {
+				String name = parser.getName();
+				if ("overview_polyline".equals(name)) {
+					overviewDepth = parser.getDepth();
+				} else if (overviewDepth != -1 && "points".equals(name)
+						&& parser.getDepth() == overviewDepth + 1) {
+					return decodePoly(parser.nextText(), out);
+				}
+			} else if (event == XmlPullParser.END_TAG
+					&& parser.getDepth() == overviewDepth) {
+				overviewDepth = -1;
+			}
+			event = parser.next();
+		}
+		return out;
+	}
+
+	/**
+	 * The parts of a single step element collected while streaming. The
+	 * locations are buffered because end_location precedes polyline in the
+	 * response but follows it in the route.
+	 */
+	private class StepFrame {
+		final int depth;
+		String child;
+		double startLat, startLng, endLat, endLng;
+		boolean hasStartLat, hasStartLng, hasEndLat, hasEndLng;
+		String points;
+		// Points of steps nested inside this one, which follow it in
+		// document order
+		RoutePoints nested;
+
+		StepFrame(int depth) {
+			this.depth = depth;
+		}
+
+		RoutePoints nested() {
+			if (nested == null) {
+				nested = new RoutePoints();
+			}
+			return nested;
+		}
+
+		void read(String parent, String name, XmlPullParser parser)
+				throws XmlPullParserException, IOException {
+			if ("start_location".equals(parent)) {
+				if ("lat".equals(name) && !hasStartLat) {
+					startLat = Double.parseDouble(parser.nextText());
+					hasStartLat = true;
+				} else if ("lng".equals(name) && !hasStartLng) {
+					startLng = Double.parseDouble(parser.nextText());
+					hasStartLng = true;
+				}
+			} else if ("end_location".equals(parent)) {
+				if ("lat".equals(name) && !hasEndLat) {
+					endLat = Double.parseDouble(parser.nextText());
+					hasEndLat = true;
+				} else if ("lng".equals(name) && !hasEndLng) {
+					endLng = Double.parseDouble(parser.nextText());
+					hasEndLng = true;
+				}
+			} else if ("polyline".equals(parent) && "points".equals(name)
+					&& points == null) {
+				points = parser.nextText();
+			}
+		}
+
+		void emit(RoutePoints out) throws XmlPullParserException {
+			if (!hasStartLat || !hasStartLng) {
+				throw new XmlPullParserException("step has no start_location");
+			}
+			if (points == null) {
+				throw new XmlPullParserException("step has no polyline");
+			}
+			if (!hasEndLat || !hasEndLng) {
+				throw new XmlPullParserException("step has no end_location");
+			}
+			out.add(startLat, startLng);
+			decodePoly(points, out);
+			out.add(endLat, endLng);
+			if (nested != null) {
+				out.addAll(nested);
+			}
+		}
+	}
+
+	/**
+	 * Closes a response stream, ignoring any error
+	 * 
+	 * @param in the stream to close, may be null
+	 */
+	private static void closeQuietly(InputStream in) {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Nothing more can be done with the stream
+			}
+		}
+	}
+
 	/**
 	 * 
 	 * @param nl
@@ -129,36 +498,15 @@ public class MapDirection {
 	}
 
 	/**
+	 * Decodes a Google encoded polyline, appending its points to a RoutePoints
+	 * buffer instead of allocating a LatLng per point. See
+	 * {@link PolylineCodec} to encode polylines or decode them in pieces.
 	 * 
-	 * @param encoded
-	 * @return
+	 * @param encoded the encoded polyline
+	 * @param out the buffer the points are appended to
+	 * @return out
 	 */
-	private ArrayList<LatLng> decodePoly(String encoded) {
-		ArrayList<LatLng> poly = new ArrayList<LatLng>();
-		int index = 0, len = encoded.length();
-		int lat = 0, lng = 0;
-		while (index < len) {
-			int b, shift = 0, result = 0;
-			do {
-				b = encoded.charAt(index++) - 63;
-				result |= (b & 0x1f) << shift;
-				shift += 5;
-			} while (b >= 0x20);
-			int dlat = ((result & 1) != 0 ? ~(result >> 1) : (result >> 1));
-			lat += dlat;
-			shift = 0;
-			result = 0;
-			do {
-				b = encoded.charAt(index++) - 63;
-				result |= (b & 0x1f) << shift;
-				shift += 5;
-			} while (b >= 0x20);
-			int dlng = ((result & 1) != 0 ? ~(result >> 1) : (result >> 1));
-			lng += dlng;
-
-			LatLng position = new LatLng((double) lat / 1E5, (double) lng / 1E5);
-			poly.add(position);
-		}
-		return poly;
+	public static RoutePoints decodePoly(String encoded, RoutePoints out) {
+		return PolylineCodec.decode(encoded, PolylineCodec.PRECISION_E5, out);
 	}
 }
\ No newline at end of file
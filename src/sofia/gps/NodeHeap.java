@@ -0,0 +1,97 @@
+package sofia.gps;
+
+/**
+ * A binary min-heap of graph node indices keyed by distance. Decreasing a
+ * key is done by pushing the node again; callers skip stale entries when they
+ * pop a node whose key is larger than its best known distance.
+ */
+final class NodeHeap {
+
+	// Fields
+	private int[] nodes = new int[64];
+	private double[] keys = new double[64];
+	private int size;
+
+	/**
+	 * Removes every entry but keeps the storage
+	 */
+	void clear() {
+		size = 0;
+	}
+
+	/**
+	 * @return whether there are no entries
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the smallest key; only valid when the heap is not empty
+	 */
+	double peekKey() {
+		return keys[0];
+	}
+
+	/**
+	 * Adds a node
+	 *
+	 * @param node
+	 * @param key
+	 */
+	void push(int node, double key) {
+		if (size == nodes.length) {
+			int[] largerNodes = new int[size * 2];
+			double[] largerKeys = new double[size * 2];
+			System.arraycopy(nodes, 0, largerNodes, 0, size);
+			System.arraycopy(keys, 0, largerKeys, 0, size);
+			nodes = largerNodes;
+			keys = largerKeys;
+		}
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (keys[parent] <= key) {
+				break;
+			}
+			nodes[i] = nodes[parent];
+			keys[i] = keys[parent];
+			i = parent;
+		}
+		nodes[i] = node;
+		keys[i] = key;
+	}
+
+	/**
+	 * Removes the node with the smallest key
+	 *
+	 * @return the node
+	 */
+	int pop() {
+		int top = nodes[0];
+		size--;
+		if (size > 0) {
+			int node = nodes[size];
+			double key = keys[size];
+			int i = 0;
+			while (true) {
+				int child = i * 2 + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && keys[child + 1] < keys[child]) {
+					child++;
+				}
+				if (keys[child] >= key) {
+					break;
+				}
+				nodes[i] = nodes[child];
+				keys[i] = keys[child];
+				i = child;
+			}
+			nodes[i] = node;
+			keys[i] = key;
+		}
+		return top;
+	}
+}
@@ -0,0 +1,113 @@
+package sofia.gps;
+
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * Finds routes on the device, without a network connection, by searching a
+ * {@link RoadGraph}. The start and end are snapped to their nearest nodes,
+ * and the route runs from the start, through the path between those nodes,
+ * to the end.
+ * </br></br>
+ * Paths are found with A* unless a {@link ContractionHierarchy} has been set
+ * for the mode of travel, in which case its much faster query is used.
+ */
+public class OfflineDirectionsProvider implements DirectionsProvider {
+
+	// Overviews keep only points that bend the route by more than this many
+	// meters
+	private static final double OVERVIEW_TOLERANCE = 25;
+
+	// Fields
+	private final RoadGraph graph;
+	private volatile ContractionHierarchy drivingHierarchy;
+	private volatile ContractionHierarchy walkingHierarchy;
+
+	/**
+	 * @param graph
+	 *            the roads to route on
+	 */
+	public OfflineDirectionsProvider(RoadGraph graph) {
+		if (graph == null) {
+			throw new NullPointerException("graph");
+		}
+		this.graph = graph;
+	}
+
+	/**
+	 * @return the roads this provider routes on
+	 */
+	public RoadGraph getRoadGraph() {
+		return graph;
+	}
+
+	/**
+	 * Uses a precomputed hierarchy to answer queries for the mode of travel it
+	 * was built for
+	 * 
+	 * @param hierarchy
+	 *            a hierarchy built from this provider's graph
+	 * @throws IllegalArgumentException
+	 *             if the hierarchy was built from a different graph
+	 */
+	public void setContractionHierarchy(ContractionHierarchy hierarchy) {
+		if (hierarchy.getNodeCount() != graph.getNodeCount()) {
+			throw new IllegalArgumentException(
+					"The hierarchy was built from a different graph");
+		}
+		if (hierarchy.getAccess() == RoadGraph.ACCESS_WALKING) {
+			walkingHierarchy = hierarchy;
+		} else {
+			drivingHierarchy = hierarchy;
+		}
+	}
+
+	/**
+	 * Stops using the hierarchy for a mode of travel, if there is one
+	 * 
+	 * @param mode Either {@link MapDirection#MODE_DRIVING} or
+	 *            {@link MapDirection#MODE_WALKING}
+	 */
+	public void removeContractionHierarchy(String mode) {
+		if (RoadGraph.accessFor(mode) == RoadGraph.ACCESS_WALKING) {
+			walkingHierarchy = null;
+		} else {
+			drivingHierarchy = null;
+		}
+	}
+
+	@Override
+	public RoutePoints getRoutePoints(LatLng start, LatLng end, String mode,
+			RoutePoints out) {
+		int access = RoadGraph.accessFor(mode);
+		int source = graph.nearestNode(start.latitude, start.longitude);
+		int target = graph.nearestNode(end.latitude, end.longitude);
+		if (source == -1 || target == -1) {
+			return null;
+		}
+
+		int size = out.size();
+		out.add(start);
+		ContractionHierarchy hierarchy = access == RoadGraph.ACCESS_WALKING
+				? walkingHierarchy : drivingHierarchy;
+		boolean found = hierarchy != null ? hierarchy.findPath(graph, source,
+				target, out) : graph.findPath(source, target, access, out);
+		if (!found) {
+			// Take back the start point
+			out.truncate(size);
+			return null;
+		}
+		out.add(end);
+		return out;
+	}
+
+	@Override
+	public RoutePoints getOverviewPoints(LatLng start, LatLng end,
+			String mode, RoutePoints out) {
+		RoutePoints route = getRoutePoints(start, end, mode, new RoutePoints());
+		if (route == null) {
+			return null;
+		}
+		return new PolylineSimplifier().simplify(route, OVERVIEW_TOLERANCE,
+				out);
+	}
+}
@@ -0,0 +1,218 @@
+package sofia.gps;
+
+/**
+ * Encodes and decodes the Google encoded polyline format, which stores each
+ * point as the difference from the one before it in a few printable
+ * characters. Coordinates are rounded to 5 decimal places, as the Google
+ * APIs use, or to 6 for tracks that need to be more precise; both ends must
+ * use the same precision.
+ * </br></br>
+ * Points are read from and written to primitive buffers, never to a LatLng
+ * per point. A PolylineCodec is a stream in both directions: successive calls
+ * to {@link #encode(double, double, StringBuilder)} continue the same
+ * polyline, and {@link #decodePart(CharSequence, int, int, RoutePoints)}
+ * accepts the text in pieces split anywhere, so neither side has to hold a
+ * whole track at once. Decoding {@link #encode(RoutePoints, int) encoded}
+ * points gives the points back rounded to the precision. A PolylineCodec is
+ * not safe to use from more than one thread at a time.
+ */
+public class PolylineCodec {
+
+	// Constants
+	public static final int PRECISION_E5 = 5, PRECISION_E6 = 6;
+
+	// Fields
+	private final int precision;
+	private final double scale;
+	// The last point encoded, scaled
+	private long encodedLatitude, encodedLongitude;
+	// The last point decoded, scaled, and the value being decoded
+	private long decodedLatitude, decodedLongitude;
+	private long value;
+	private int shift;
+	// Whether the value being decoded is a longitude
+	private boolean longitude;
+
+	/**
+	 * @param precision
+	 *            PRECISION_E5 or PRECISION_E6, the number of decimal places
+	 *            kept
+	 */
+	public PolylineCodec(int precision) {
+		if (precision != PRECISION_E5 && precision != PRECISION_E6) {
+			throw new IllegalArgumentException("Unsupported precision "
+					+ precision);
+		}
+		this.precision = precision;
+		scale = Math.pow(10, precision);
+	}
+
+	/**
+	 * Encodes a whole route
+	 *
+	 * @param points
+	 * @param precision
+	 *            PRECISION_E5 or PRECISION_E6
+	 * @return the encoded polyline
+	 */
+	public static String encode(RoutePoints points, int precision) {
+		StringBuilder out = new StringBuilder(points.size() * 6);
+		new PolylineCodec(precision).encode(points.getCoordinates(), 0,
+				points.size(), out);
+		return out.toString();
+	}
+
+	/**
+	 * Decodes a whole polyline
+	 *
+	 * @param encoded
+	 * @param precision
+	 *            PRECISION_E5 or PRECISION_E6
+	 * @param out
+	 *            the buffer the points are appended to
+	 * @return out
+	 * @throws IllegalArgumentException
+	 *             if the text is not an encoded polyline
+	 */
+	public static RoutePoints decode(CharSequence encoded, int precision,
+			RoutePoints out) {
+		return new PolylineCodec(precision).decode(encoded, out);
+	}
+
+	/**
+	 * @return the number of decimal places kept, PRECISION_E5 or
+	 *         PRECISION_E6
+	 */
+	public int getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * Starts a new polyline in both directions, forgetting the last point
+	 * encoded and any partly decoded point
+	 */
+	public void reset() {
+		encodedLatitude = encodedLongitude = 0;
+		decodedLatitude = decodedLongitude = 0;
+		value = 0;
+		shift = 0;
+		longitude = false;
+	}
+
+	/**
+	 * Appends the next point of the polyline being encoded
+	 *
+	 * @param latitude
+	 * @param longitude
+	 * @param out
+	 *            the text the point is appended to
+	 */
+	public void encode(double latitude, double longitude, StringBuilder out) {
+		long lat = Math.round(latitude * scale);
+		long lng = Math.round(longitude * scale);
+		encodeValue(lat - encodedLatitude, out);
+		encodeValue(lng - encodedLongitude, out);
+		encodedLatitude = lat;
+		encodedLongitude = lng;
+	}
+
+	/**
+	 * Appends the next points of the polyline being encoded
+	 *
+	 * @param coordinates
+	 *            packed latitude and longitude pairs, as in
+	 *            {@link RoutePoints#getCoordinates()}
+	 * @param first
+	 *            the index of the first point
+	 * @param count
+	 *            the number of points
+	 * @param out
+	 *            the text the points are appended to
+	 */
+	public void encode(double[] coordinates, int first, int count,
+			StringBuilder out) {
+		for (int i = first * 2, end = (first + count) * 2; i < end; i += 2) {
+			encode(coordinates[i], coordinates[i + 1], out);
+		}
+	}
+
+	/**
+	 * Decodes a whole polyline, starting a new one
+	 *
+	 * @param encoded
+	 * @param out
+	 *            the buffer the points are appended to
+	 * @return out
+	 * @throws IllegalArgumentException
+	 *             if the text is not an encoded polyline
+	 */
+	public RoutePoints decode(CharSequence encoded, RoutePoints out) {
+		decodedLatitude = decodedLongitude = 0;
+		value = 0;
+		shift = 0;
+		longitude = false;
+		decodePart(encoded, 0, encoded.length(), out);
+		if (!isDecodeComplete()) {
+			throw new IllegalArgumentException("Truncated polyline");
+		}
+		return out;
+	}
+
+	/**
+	 * Decodes the next piece of the polyline being decoded. Pieces may be
+	 * split anywhere, even within a point; the rest of a split point is
+	 * taken from the next piece.
+	 *
+	 * @param encoded
+	 * @param start
+	 *            the index of the first character of the piece
+	 * @param end
+	 *            the index after the last character of the piece
+	 * @param out
+	 *            the buffer the points finished by the piece are appended to
+	 * @return out
+	 * @throws IllegalArgumentException
+	 *             if the text is not an encoded polyline
+	 */
+	public RoutePoints decodePart(CharSequence encoded, int start, int end,
+			RoutePoints out) {
+		for (int i = start; i < end; i++) {
+			int b = encoded.charAt(i) - 63;
+			if (b < 0 || b > 0x3f || shift > 60) {
+				throw new IllegalArgumentException("Not an encoded polyline");
+			}
+			value |= (long) (b & 0x1f) << shift;
+			if (b >= 0x20) {
+				shift += 5;
+				continue;
+			}
+			long delta = (value >>> 1) ^ -(value & 1);
+			value = 0;
+			shift = 0;
+			if (longitude) {
+				decodedLongitude += delta;
+				out.add(decodedLatitude / scale, decodedLongitude / scale);
+			} else {
+				decodedLatitude += delta;
+			}
+			longitude = !longitude;
+		}
+		return out;
+	}
+
+	/**
+	 * @return whether the text decoded so far ends at the end of a point
+	 */
+	public boolean isDecodeComplete() {
+		return shift == 0 && !longitude;
+	}
+
+	private static void encodeValue(long delta, StringBuilder out) {
+		long v = (delta << 1) ^ (delta >> 63);
+		while (v >= 0x20) {
+			out.append((char) ((0x20 | (v & 0x1f)) + 63));
+			v >>>= 5;
+		}
+		out.append((char) (v + 63));
+	}
+}
@@ -0,0 +1,252 @@
+package sofia.gps;
+
+/**
+ * Simplifies routes with the Douglas-Peucker algorithm, dropping points that
+ * lie within a tolerance, in meters, of the line through their neighbors.
+ * The first and last points are always kept. To simplify one route to many
+ * tolerances, {@link #rank(RoutePoints, double[])} it once and pass the ranks
+ * to {@link #simplify(RoutePoints, double[], double, RoutePoints)} for each.
+ * </br></br>
+ * A PolylineSimplifier keeps its working arrays between calls, so reusing one
+ * to simplify many routes does not allocate per point. It is not safe to use
+ * from more than one thread at a time.
+ */
+public class PolylineSimplifier {
+
+	// Mean radius of the Earth, in meters
+	private static final double EARTH_RADIUS = 6371008.8;
+
+	// Fields
+	// Points projected onto a local plane, in meters
+	private double[] x = new double[0], y = new double[0];
+	private boolean[] keep = new boolean[0];
+	// Pending [first, last] index ranges
+	private int[] stack = new int[0];
+
+	/**
+	 * Appends a simplified copy of a route to out
+	 *
+	 * @param points
+	 *            the route to simplify
+	 * @param toleranceMeters
+	 *            how far, in meters, a point may be from the simplified line
+	 *            before it must be kept
+	 * @param out
+	 *            the buffer the kept points are appended to
+	 * @return out
+	 */
+	public RoutePoints simplify(RoutePoints points, double toleranceMeters,
+			RoutePoints out) {
+		int n = points.size();
+		if (n < 3 || toleranceMeters <= 0) {
+			out.addAll(points);
+			return out;
+		}
+
+		project(points);
+
+		keep[0] = true;
+		keep[n - 1] = true;
+		for (int i = 1; i < n - 1; i++) {
+			keep[i] = false;
+		}
+
+		double toleranceSquared = toleranceMeters * toleranceMeters;
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = n - 1;
+		while (top > 0) {
+			int last = stack[--top];
+			int first = stack[--top];
+
+			int farthest = -1;
+			double farthestDistance = toleranceSquared;
+			for (int i = first + 1; i < last; i++) {
+				double d = distanceSquared(i, first, last);
+				if (d > farthestDistance) {
+					farthest = i;
+					farthestDistance = d;
+				}
+			}
+
+			if (farthest != -1) {
+				keep[farthest] = true;
+				if (farthest - first > 1) {
+					stack[top++] = first;
+					stack[top++] = farthest;
+				}
+				if (last - farthest > 1) {
+					stack[top++] = farthest;
+					stack[top++] = last;
+				}
+			}
+		}
+
+		double[] coordinates = points.getCoordinates();
+		for (int i = 0; i < n; i++) {
+			if (keep[i]) {
+				out.add(coordinates[i * 2], coordinates[i * 2 + 1]);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Ranks each point of a route by the largest tolerance that keeps it.
+	 * This runs the Douglas-Peucker algorithm once, splitting every range
+	 * that has a point off its line, and ranks each split point by its
+	 * distance from the line, capped at the rank of the point that split the
+	 * range around it, since a smaller tolerance is needed to reach it.
+	 *
+	 * @param points
+	 *            the route to rank
+	 * @param ranks
+	 *            a buffer of at least points.size() values, or null
+	 * @return ranks, or a new array if it was null or too small, holding the
+	 *         rank of each point in meters; the first and last points are
+	 *         ranked Double.POSITIVE_INFINITY
+	 */
+	public double[] rank(RoutePoints points, double[] ranks) {
+		int n = points.size();
+		if (ranks == null || ranks.length < n) {
+			ranks = new double[n];
+		}
+		if (n < 3) {
+			for (int i = 0; i < n; i++) {
+				ranks[i] = Double.POSITIVE_INFINITY;
+			}
+			return ranks;
+		}
+
+		project(points);
+
+		ranks[0] = Double.POSITIVE_INFINITY;
+		ranks[n - 1] = Double.POSITIVE_INFINITY;
+		for (int i = 1; i < n - 1; i++) {
+			ranks[i] = 0;
+		}
+
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = n - 1;
+		while (top > 0) {
+			int last = stack[--top];
+			int first = stack[--top];
+
+			int farthest = -1;
+			double farthestDistance = 0;
+			for (int i = first + 1; i < last; i++) {
+				double d = distanceSquared(i, first, last);
+				if (d > farthestDistance) {
+					farthest = i;
+					farthestDistance = d;
+				}
+			}
+
+			if (farthest != -1) {
+				// One end of the range is the point that split it, and the
+				// other is ranked at least as high
+				ranks[farthest] = Math.min(Math.sqrt(farthestDistance),
+						Math.min(ranks[first], ranks[last]));
+				if (farthest - first > 1) {
+					stack[top++] = first;
+					stack[top++] = farthest;
+				}
+				if (last - farthest > 1) {
+					stack[top++] = farthest;
+					stack[top++] = last;
+				}
+			}
+		}
+		return ranks;
+	}
+
+	/**
+	 * Appends a simplified copy of a ranked route to out. This keeps the same
+	 * points as {@link #simplify(RoutePoints, double, RoutePoints)}, but
+	 * takes time linear in the number of points.
+	 *
+	 * @param points
+	 *            the route to simplify
+	 * @param ranks
+	 *            the ranks of the points, from
+	 *            {@link #rank(RoutePoints, double[])}
+	 * @param toleranceMeters
+	 *            how far, in meters, a point may be from the simplified line
+	 *            before it must be kept
+	 * @param out
+	 *            the buffer the kept points are appended to
+	 * @return out
+	 */
+	public RoutePoints simplify(RoutePoints points, double[] ranks,
+			double toleranceMeters, RoutePoints out) {
+		int n = points.size();
+		if (n < 3 || toleranceMeters <= 0) {
+			out.addAll(points);
+			return out;
+		}
+
+		double[] coordinates = points.getCoordinates();
+		for (int i = 0; i < n; i++) {
+			if (ranks[i] > toleranceMeters) {
+				out.add(coordinates[i * 2], coordinates[i * 2 + 1]);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Projects the points onto a plane tangent to the Earth at the first
+	 * point, which is accurate enough for measuring small offsets
+	 */
+	private void project(RoutePoints points) {
+		int n = points.size();
+		if (x.length < n) {
+			x = new double[n];
+			y = new double[n];
+			keep = new boolean[n];
+			// Each split pushes at most two ranges, and at most n - 2
+			// points can be split on
+			stack = new int[n * 2 + 2];
+		}
+
+		double[] coordinates = points.getCoordinates();
+		double metersPerDegree = Math.toRadians(1) * EARTH_RADIUS;
+		double lngScale = metersPerDegree
+				* Math.cos(Math.toRadians(coordinates[0]));
+		double lng0 = coordinates[1];
+		for (int i = 0; i < n; i++) {
+			y[i] = coordinates[i * 2] * metersPerDegree;
+			double dLng = coordinates[i * 2 + 1] - lng0;
+			// Keep segments that cross the antimeridian short
+			if (dLng > 180) {
+				dLng -= 360;
+			} else if (dLng < -180) {
+				dLng += 360;
+			}
+			x[i] = dLng * lngScale;
+		}
+	}
+
+	/**
+	 * @return the squared distance from point i to the segment from a to b
+	 */
+	private double distanceSquared(int i, int a, int b) {
+		double dx = x[b] - x[a];
+		double dy = y[b] - y[a];
+		double px = x[i] - x[a];
+		double py = y[i] - y[a];
+		double lengthSquared = dx * dx + dy * dy;
+		if (lengthSquared > 0) {
+			double t = (px * dx + py * dy) / lengthSquared;
+			if (t >= 1) {
+				px = x[i] - x[b];
+				py = y[i] - y[b];
+			} else if (t > 0) {
+				px -= t * dx;
+				py -= t * dy;
+			}
+		}
+		return px * px + py * py;
+	}
+}
@@ -0,0 +1,467 @@
+package sofia.gps;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A compact, read-only road network that can be routed over without a
+ * network connection. Nodes are stored as E6 coordinates and edges as
+ * compressed adjacency arrays, so a graph costs a few dozen bytes per node.
+ * </br></br>
+ * Edges are directed: each edge can be traveled from its source node to its
+ * target node by the modes in its access flags. Roads that can be traveled
+ * both ways appear once in each direction, and walkable one-way roads should
+ * be given a walking-only edge in the opposite direction.
+ * </br></br>
+ * The file format, with every value big-endian, is:
+ * <pre>
+ * int   magic, "RDG1"
+ * int   node count n
+ * int   edge count m
+ * n  x  (int latitude E6, int longitude E6)
+ * n+1 x int first edge; the edges of node i are [first[i], first[i + 1])
+ * m  x  (int target node, float length in meters,
+ *        byte speed in km/h, 0 for the default, byte access flags)
+ * </pre>
+ */
+public class RoadGraph {
+
+	// Constants
+	public static final int ACCESS_DRIVING = 1;
+	public static final int ACCESS_WALKING = 2;
+
+	// Used for edges without a speed, in km/h
+	public static final int DEFAULT_DRIVING_SPEED = 50;
+	// In meters per second, about 5 km/h
+	public static final double WALKING_SPEED = 1.4;
+
+	private static final int FILE_MAGIC = 0x52444731; // "RDG1"
+	private static final double EARTH_RADIUS = 6371008.8;
+	// Size of a cell of the nearest-node index, in E6 degrees
+	private static final int CELL_SIZE = 10000;
+	// Node indices share a long with their cell when the index is built
+	private static final int MAX_NODES = 0xffffff;
+
+	// Fields
+	final int nodeCount;
+	final int[] latitudeE6, longitudeE6;
+	final int[] firstEdge;
+	final int[] edgeTarget;
+	final float[] edgeLength;
+	final byte[] edgeSpeed;
+	final byte[] edgeAccess;
+	// Fastest speed on any edge, in meters per second, for the A* bound
+	private final double maxDrivingSpeed;
+
+	// Nearest-node index: nodes sorted by cell, with the start of each cell
+	private final long[] cellKeys;
+	private final int[] cellStart;
+	private final int[] cellNodes;
+
+	// Reused between searches on the same thread, so that searches on
+	// different threads run at the same time
+	private final ThreadLocal<SearchSpace> searchSpace = new ThreadLocal<SearchSpace>() {
+		@Override
+		protected SearchSpace initialValue() {
+			return new SearchSpace(nodeCount);
+		}
+	};
+
+	/**
+	 * Creates a graph from arrays in the layout of the file format
+	 *
+	 * @param latitudeE6
+	 * @param longitudeE6
+	 * @param firstEdge
+	 *            n + 1 offsets into the edge arrays
+	 * @param edgeTarget
+	 * @param edgeLength
+	 *            in meters; must be at least the great-circle distance
+	 *            between the edge's nodes
+	 * @param edgeSpeed
+	 *            in km/h, read as unsigned; 0 for the default
+	 * @param edgeAccess
+	 *            a combination of {@link #ACCESS_DRIVING} and
+	 *            {@link #ACCESS_WALKING}
+	 */
+	public RoadGraph(int[] latitudeE6, int[] longitudeE6, int[] firstEdge,
+			int[] edgeTarget, float[] edgeLength, byte[] edgeSpeed,
+			byte[] edgeAccess) {
+		this.nodeCount = latitudeE6.length;
+		if (nodeCount > MAX_NODES) {
+			throw new IllegalArgumentException("Too many nodes");
+		}
+		if (longitudeE6.length != nodeCount
+				|| firstEdge.length != nodeCount + 1
+				|| firstEdge[nodeCount] != edgeTarget.length
+				|| edgeLength.length != edgeTarget.length
+				|| edgeSpeed.length != edgeTarget.length
+				|| edgeAccess.length != edgeTarget.length) {
+			throw new IllegalArgumentException("Inconsistent graph arrays");
+		}
+		this.latitudeE6 = latitudeE6;
+		this.longitudeE6 = longitudeE6;
+		this.firstEdge = firstEdge;
+		this.edgeTarget = edgeTarget;
+		this.edgeLength = edgeLength;
+		this.edgeSpeed = edgeSpeed;
+		this.edgeAccess = edgeAccess;
+
+		int fastest = 0;
+		for (int e = 0; e < edgeTarget.length; e++) {
+			fastest = Math.max(fastest, speedOf(e));
+		}
+		this.maxDrivingSpeed = Math.max(fastest, 1) / 3.6;
+
+		// Sort the nodes by cell so each cell's nodes are contiguous
+		long[] keyed = new long[nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			keyed[i] = (cellKey(latitudeE6[i], longitudeE6[i]) << 24) | i;
+		}
+		Arrays.sort(keyed);
+		cellNodes = new int[nodeCount];
+		int cells = 0;
+		long[] keys = new long[nodeCount];
+		int[] starts = new int[nodeCount + 1];
+		for (int i = 0; i < nodeCount; i++) {
+			long key = keyed[i] >> 24;
+			cellNodes[i] = (int) (keyed[i] & 0xffffff);
+			if (cells == 0 || keys[cells - 1] != key) {
+				keys[cells] = key;
+				starts[cells] = i;
+				cells++;
+			}
+		}
+		starts[cells] = nodeCount;
+		cellKeys = Arrays.copyOf(keys, cells);
+		cellStart = Arrays.copyOf(starts, cells + 1);
+	}
+
+	/**
+	 * Reads a graph file
+	 *
+	 * @param file
+	 * @return the graph
+	 * @throws IOException
+	 *             if the file cannot be read or is not a graph file
+	 */
+	public static RoadGraph read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a graph in the file format from a stream
+	 *
+	 * @param stream
+	 *            the stream to read; it is not closed by this method
+	 * @return the graph
+	 * @throws IOException
+	 *             if the stream cannot be read or does not hold a graph
+	 */
+	public static RoadGraph read(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				stream, 65536));
+		if (in.readInt() != FILE_MAGIC) {
+			throw new IOException("Not a road graph file");
+		}
+		int n = in.readInt();
+		int m = in.readInt();
+		if (n < 0 || n > MAX_NODES || m < 0) {
+			throw new IOException("Unsupported road graph size");
+		}
+		int[] lat = new int[n];
+		int[] lng = new int[n];
+		for (int i = 0; i < n; i++) {
+			lat[i] = in.readInt();
+			lng[i] = in.readInt();
+		}
+		int[] first = new int[n + 1];
+		for (int i = 0; i <= n; i++) {
+			first[i] = in.readInt();
+		}
+		int[] target = new int[m];
+		float[] length = new float[m];
+		byte[] speed = new byte[m];
+		byte[] access = new byte[m];
+		for (int e = 0; e < m; e++) {
+			target[e] = in.readInt();
+			length[e] = in.readFloat();
+			speed[e] = in.readByte();
+			access[e] = in.readByte();
+		}
+		try {
+			return new RoadGraph(lat, lng, first, target, length, speed,
+					access);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes this graph in the file format
+	 *
+	 * @param stream
+	 *            the stream to write to; it is flushed but not closed
+	 * @throws IOException
+	 *             if the stream cannot be written
+	 */
+	public void write(OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				stream, 65536));
+		out.writeInt(FILE_MAGIC);
+		out.writeInt(nodeCount);
+		out.writeInt(edgeTarget.length);
+		for (int i = 0; i < nodeCount; i++) {
+			out.writeInt(latitudeE6[i]);
+			out.writeInt(longitudeE6[i]);
+		}
+		for (int i = 0; i <= nodeCount; i++) {
+			out.writeInt(firstEdge[i]);
+		}
+		for (int e = 0; e < edgeTarget.length; e++) {
+			out.writeInt(edgeTarget[e]);
+			out.writeFloat(edgeLength[e]);
+			out.writeByte(edgeSpeed[e]);
+			out.writeByte(edgeAccess[e]);
+		}
+		out.flush();
+	}
+
+	/**
+	 * @return the number of nodes
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * @return the number of directed edges
+	 */
+	public int getEdgeCount() {
+		return edgeTarget.length;
+	}
+
+	/**
+	 * @param node
+	 * @return the latitude of node, in degrees
+	 */
+	public double getLatitude(int node) {
+		return latitudeE6[node] / 1E6;
+	}
+
+	/**
+	 * @param node
+	 * @return the longitude of node, in degrees
+	 */
+	public double getLongitude(int node) {
+		return longitudeE6[node] / 1E6;
+	}
+
+	/**
+	 * Converts a mode of travel to access flags
+	 *
+	 * @param mode
+	 *            Either {@link MapDirection#MODE_DRIVING} or
+	 *            {@link MapDirection#MODE_WALKING}
+	 * @return {@link #ACCESS_DRIVING} or {@link #ACCESS_WALKING}
+	 */
+	public static int accessFor(String mode) {
+		if (MapDirection.MODE_WALKING.equals(mode)) {
+			return ACCESS_WALKING;
+		} else if (MapDirection.MODE_DRIVING.equals(mode)) {
+			return ACCESS_DRIVING;
+		}
+		throw new IllegalArgumentException("Unknown mode of travel: " + mode);
+	}
+
+	/**
+	 * Returns the time it takes to travel an edge
+	 *
+	 * @param edge
+	 * @param access
+	 *            {@link #ACCESS_DRIVING} or {@link #ACCESS_WALKING}
+	 * @return the time in seconds, or infinity if the edge cannot be traveled
+	 *         with that access
+	 */
+	public double edgeCost(int edge, int access) {
+		if ((edgeAccess[edge] & access) == 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		if (access == ACCESS_WALKING) {
+			return edgeLength[edge] / WALKING_SPEED;
+		}
+		return edgeLength[edge] * 3.6 / speedOf(edge);
+	}
+
+	/**
+	 * Finds the node closest to a location
+	 *
+	 * @param latitude
+	 * @param longitude
+	 * @return the node, or -1 if there is none within about 50 kilometers
+	 */
+	public int nearestNode(double latitude, double longitude) {
+		int latE6 = (int) Math.round(latitude * 1E6);
+		int lngE6 = (int) Math.round(longitude * 1E6);
+		int cellLat = cellOf(latE6);
+		int cellLng = cellOf(lngE6);
+		// The narrowest side of a cell near the location, in meters; once
+		// ring r has been searched, every node within r - 1 cell widths has
+		// been seen
+		double poleward = Math.min(Math.abs(latitude) + 2 * CELL_SIZE / 1E6,
+				89);
+		double cellMeters = Math.toRadians(CELL_SIZE / 1E6) * EARTH_RADIUS
+				* Math.cos(Math.toRadians(poleward));
+
+		int best = -1;
+		double bestDistance = Double.POSITIVE_INFINITY;
+		for (int ring = 0; ring <= 50; ring++) {
+			if (best != -1 && bestDistance <= (ring - 1) * cellMeters) {
+				break;
+			}
+			for (int dLat = -ring; dLat <= ring; dLat++) {
+				for (int dLng = -ring; dLng <= ring; dLng++) {
+					if (Math.abs(dLat) != ring && Math.abs(dLng) != ring) {
+						continue;
+					}
+					int cell = Arrays.binarySearch(cellKeys,
+							packCell(cellLat + dLat, cellLng + dLng));
+					if (cell < 0) {
+						continue;
+					}
+					for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+						int node = cellNodes[i];
+						double d = distance(latitude, longitude,
+								getLatitude(node), getLongitude(node));
+						if (d < bestDistance) {
+							bestDistance = d;
+							best = node;
+						}
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Finds the fastest path between two nodes with A*, guided by the
+	 * straight-line distance at the fastest speed in the graph. Paths can be
+	 * found on several threads at once.
+	 *
+	 * @param source
+	 * @param target
+	 * @param access
+	 *            {@link #ACCESS_DRIVING} or {@link #ACCESS_WALKING}
+	 * @param out
+	 *            the buffer the coordinates of the path's nodes are appended
+	 *            to
+	 * @return whether a path was found; out is unchanged if not
+	 */
+	public boolean findPath(int source, int target, int access,
+			RoutePoints out) {
+		SearchSpace space = searchSpace.get();
+		space.reset();
+
+		double speed = access == ACCESS_WALKING ? WALKING_SPEED
+				: maxDrivingSpeed;
+		double targetLat = getLatitude(target);
+		double targetLng = getLongitude(target);
+
+		space.reach(source, 0, -1, 0);
+		while (!space.heap.isEmpty()) {
+			double key = space.heap.peekKey();
+			int node = space.heap.pop();
+			double d = space.distance(node);
+			double h = distance(getLatitude(node), getLongitude(node),
+					targetLat, targetLng) / speed;
+			if (key > d + h * 0.999 + 1E-9) {
+				// A stale entry for a node that was since reached faster
+				continue;
+			}
+			if (node == target) {
+				appendPath(space, source, target, out);
+				return true;
+			}
+			for (int e = firstEdge[node]; e < firstEdge[node + 1]; e++) {
+				double cost = edgeCost(e, access);
+				if (cost == Double.POSITIVE_INFINITY) {
+					continue;
+				}
+				int next = edgeTarget[e];
+				double nd = d + cost;
+				if (nd < space.distance(next)) {
+					double nh = distance(getLatitude(next),
+							getLongitude(next), targetLat, targetLng)
+							/ speed;
+					space.reach(next, nd, node, nd + nh * 0.999);
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Great-circle distance in meters, using the haversine formula
+	 */
+	static double distance(double lat1, double lng1, double lat2, double lng2) {
+		double dLat = Math.toRadians(lat2 - lat1);
+		double dLng = Math.toRadians(lng2 - lng1);
+		double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+				+ Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+				* Math.sin(dLng / 2) * Math.sin(dLng / 2);
+		return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+	private int speedOf(int edge) {
+		int speed = edgeSpeed[edge] & 0xff;
+		return speed == 0 ? DEFAULT_DRIVING_SPEED : speed;
+	}
+
+	private void appendPath(SearchSpace space, int source, int target,
+			RoutePoints out) {
+		// Walk back from the target, then emit the nodes in travel order
+		int count = 1;
+		for (int node = target; node != source; node = space.previous(node)) {
+			count++;
+		}
+		int[] path = new int[count];
+		int i = count;
+		for (int node = target; node != source; node = space.previous(node)) {
+			path[--i] = node;
+		}
+		path[0] = source;
+		out.ensureCapacity(out.size() + count);
+		for (int node : path) {
+			out.add(getLatitude(node), getLongitude(node));
+		}
+	}
+
+	private static long cellKey(int latE6, int lngE6) {
+		return packCell(cellOf(latE6), cellOf(lngE6));
+	}
+
+	// Rounds toward negative infinity so that cells do not straddle 0
+	private static int cellOf(int e6) {
+		return e6 >= 0 ? e6 / CELL_SIZE : -((CELL_SIZE - 1 - e6) / CELL_SIZE);
+	}
+
+	// Cells span at most 36000 across, so 16 bits each (offset to be
+	// positive) keep the packed key, shifted by 24 for sorting, positive
+	private static long packCell(int cellLat, int cellLng) {
+		return ((long) (cellLat + 9000) << 16) | (cellLng + 18000);
+	}
+}
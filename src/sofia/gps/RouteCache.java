@@ -0,0 +1,549 @@
+package sofia.gps;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * A two-tier cache of route points. The first tier is an in-memory LRU that
+ * is bounded by the total number of points it holds; the second is a
+ * directory of files that survives restarts, bounded by the bytes its files
+ * take. Routes are looked up by a {@link RouteKey}, whose coordinates are
+ * rounded to the cache's precision, and expire after a fixed time to live.
+ * The first time the directory is used, expired routes and files left by
+ * interrupted writes are deleted.
+ * </br></br>
+ * The RoutePoints handed out by {@link #get(RouteKey)} are shared with the
+ * cache and must not be modified.
+ */
+public class RouteCache {
+
+	// Constants
+	public static final int DEFAULT_MAX_POINTS = 200000;
+	public static final int DEFAULT_PRECISION = 4;
+	public static final long DEFAULT_TIME_TO_LIVE = 24 * 60 * 60 * 1000L;
+	public static final long DEFAULT_MAX_DISK_BYTES = 16 * 1024 * 1024;
+
+	private static final String TAG = "RouteCache";
+	private static final int FILE_MAGIC = 0x52544531; // "RTE1"
+	private static final String FILE_SUFFIX = ".route";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	// Fields
+	private final LinkedHashMap<RouteKey, Entry> memory;
+	private final File directory;
+	private final int maxPoints;
+	private final int precision;
+	private final long timeToLive;
+	private final long maxDiskBytes;
+	private int points;
+	// Guards the directory bookkeeping below
+	private final Object disk = new Object();
+	// Whether the directory has been swept since the cache was created, and
+	// roughly how many bytes its routes take
+	private boolean swept;
+	private long diskBytes;
+
+	// Statistics
+	private long memoryHits, diskHits, misses, evictions, expirations;
+
+	/**
+	 * Creates a cache with the default size, precision and time to live
+	 *
+	 * @param directory
+	 *            where the second tier is kept, or null for a memory-only
+	 *            cache
+	 */
+	public RouteCache(File directory) {
+		this(directory, DEFAULT_MAX_POINTS, DEFAULT_PRECISION,
+				DEFAULT_TIME_TO_LIVE);
+	}
+
+	/**
+	 * Creates a cache
+	 *
+	 * @param directory
+	 *            where the second tier is kept, or null for a memory-only
+	 *            cache
+	 * @param maxPoints
+	 *            the most route points kept in memory
+	 * @param precision
+	 *            the number of decimal places origins and destinations are
+	 *            rounded to
+	 * @param timeToLive
+	 *            how long a route stays valid, in milliseconds; 0 or less
+	 *            means routes never expire
+	 */
+	public RouteCache(File directory, int maxPoints, int precision,
+			long timeToLive) {
+		this(directory, maxPoints, precision, timeToLive,
+				DEFAULT_MAX_DISK_BYTES);
+	}
+
+	/**
+	 * Creates a cache
+	 *
+	 * @param directory
+	 *            where the second tier is kept, or null for a memory-only
+	 *            cache
+	 * @param maxPoints
+	 *            the most route points kept in memory
+	 * @param precision
+	 *            the number of decimal places origins and destinations are
+	 *            rounded to
+	 * @param timeToLive
+	 *            how long a route stays valid, in milliseconds; 0 or less
+	 *            means routes never expire
+	 * @param maxDiskBytes
+	 *            the most bytes the files in the directory may take; the
+	 *            least recently used routes are deleted past it
+	 */
+	public RouteCache(File directory, int maxPoints, int precision,
+			long timeToLive, long maxDiskBytes) {
+		this.memory = new LinkedHashMap<RouteKey, Entry>(16, 0.75f, true);
+		this.directory = directory;
+		this.maxPoints = maxPoints;
+		this.precision = precision;
+		this.timeToLive = timeToLive;
+		this.maxDiskBytes = maxDiskBytes;
+		if (directory != null && !directory.isDirectory()
+				&& !directory.mkdirs()) {
+			Log.w(TAG, "Unable to create " + directory);
+		}
+	}
+
+	/**
+	 * Creates the key for a full route using this cache's precision
+	 *
+	 * @param origin
+	 * @param destination
+	 * @param mode
+	 * @return the key
+	 */
+	public RouteKey keyFor(LatLng origin, LatLng destination, String mode) {
+		return keyFor(origin, destination, mode, false);
+	}
+
+	/**
+	 * Creates the key for a route using this cache's precision
+	 *
+	 * @param origin
+	 * @param destination
+	 * @param mode
+	 * @param overview
+	 *            whether the key is for the route's overview
+	 * @return the key
+	 */
+	public RouteKey keyFor(LatLng origin, LatLng destination, String mode,
+			boolean overview) {
+		return new RouteKey(origin, destination, mode, precision, overview);
+	}
+
+	/**
+	 * Looks up a route, first in memory and then on disk. Routes found on
+	 * disk are moved into memory.
+	 *
+	 * @param key
+	 * @return the cached points, or null if the route is not cached or has
+	 *         expired
+	 */
+	public RoutePoints get(RouteKey key) {
+		long now = System.currentTimeMillis();
+		synchronized (memory) {
+			Entry entry = memory.get(key);
+			if (entry != null) {
+				if (!isExpired(entry.created, now)) {
+					memoryHits++;
+					return entry.points;
+				}
+				memory.remove(key);
+				points -= entry.points.size();
+				expirations++;
+			}
+		}
+
+		Entry entry = read(key, now);
+		synchronized (memory) {
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			diskHits++;
+			store(key, entry);
+		}
+		return entry.points;
+	}
+
+	/**
+	 * Adds a route to both tiers. The cache keeps the given RoutePoints, so
+	 * the caller must not modify it afterward.
+	 *
+	 * @param key
+	 * @param routePoints
+	 */
+	public void put(RouteKey key, RoutePoints routePoints) {
+		Entry entry = new Entry(routePoints, System.currentTimeMillis());
+		synchronized (memory) {
+			store(key, entry);
+		}
+		write(key, entry);
+	}
+
+	/**
+	 * Removes every route from both tiers
+	 */
+	public void clear() {
+		synchronized (memory) {
+			memory.clear();
+			points = 0;
+		}
+		if (directory != null) {
+			synchronized (disk) {
+				File[] files = directory.listFiles();
+				if (files != null) {
+					for (File file : files) {
+						if (file.getName().endsWith(FILE_SUFFIX)) {
+							file.delete();
+						}
+					}
+				}
+				diskBytes = 0;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of lookups answered from memory
+	 */
+	public long getMemoryHitCount() {
+		synchronized (memory) {
+			return memoryHits;
+		}
+	}
+
+	/**
+	 * @return the number of lookups answered from disk
+	 */
+	public long getDiskHitCount() {
+		synchronized (memory) {
+			return diskHits;
+		}
+	}
+
+	/**
+	 * @return the number of lookups that found nothing
+	 */
+	public long getMissCount() {
+		synchronized (memory) {
+			return misses;
+		}
+	}
+
+	/**
+	 * @return the number of routes dropped from memory or disk to stay within
+	 *         the point and byte limits
+	 */
+	public long getEvictionCount() {
+		synchronized (memory) {
+			return evictions;
+		}
+	}
+
+	/**
+	 * @return the number of routes dropped because they outlived the time to
+	 *         live
+	 */
+	public long getExpirationCount() {
+		synchronized (memory) {
+			return expirations;
+		}
+	}
+
+	/**
+	 * @return roughly how many bytes the routes on disk take
+	 */
+	public long getDiskSize() {
+		if (directory == null) {
+			return 0;
+		}
+		synchronized (disk) {
+			sweep();
+			return diskBytes;
+		}
+	}
+
+	/**
+	 * @return the number of route points currently held in memory
+	 */
+	public int getPointCount() {
+		synchronized (memory) {
+			return points;
+		}
+	}
+
+	// Must hold the memory lock
+	private void store(RouteKey key, Entry entry) {
+		Entry old = memory.put(key, entry);
+		if (old != null) {
+			points -= old.points.size();
+		}
+		points += entry.points.size();
+
+		Iterator<Map.Entry<RouteKey, Entry>> eldest = memory.entrySet()
+				.iterator();
+		while (points > maxPoints && eldest.hasNext()) {
+			Map.Entry<RouteKey, Entry> e = eldest.next();
+			if (e.getValue() == entry) {
+				// A single route larger than the limit stays until the next
+				// one arrives, so the caller that fetched it still benefits
+				break;
+			}
+			points -= e.getValue().points.size();
+			eldest.remove();
+			evictions++;
+		}
+	}
+
+	private boolean isExpired(long created, long now) {
+		return timeToLive > 0 && now - created >= timeToLive;
+	}
+
+	private File fileFor(RouteKey key) {
+		return new File(directory, key.toString() + FILE_SUFFIX);
+	}
+
+	private Entry read(RouteKey key, long now) {
+		if (directory == null) {
+			return null;
+		}
+		synchronized (disk) {
+			sweep();
+		}
+		File file = fileFor(key);
+		if (!file.isFile()) {
+			return null;
+		}
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != FILE_MAGIC) {
+				throw new IOException("Not a route file");
+			}
+			long created = in.readLong();
+			if (isExpired(created, now)) {
+				in.close();
+				in = null;
+				file.delete();
+				synchronized (memory) {
+					expirations++;
+				}
+				return null;
+			}
+			int count = in.readInt();
+			RoutePoints routePoints = new RoutePoints(count);
+			for (int i = 0; i < count; i++) {
+				routePoints.add(in.readDouble(), in.readDouble());
+			}
+			// Keep recently used routes when the directory is trimmed
+			file.setLastModified(now);
+			return new Entry(routePoints, created);
+		} catch (IOException e) {
+			Log.w(TAG, "Discarding unreadable " + file, e);
+			file.delete();
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	private void write(RouteKey key, Entry entry) {
+		if (directory == null) {
+			return;
+		}
+		synchronized (disk) {
+			sweep();
+		}
+		File file = fileFor(key);
+		// Write to a temporary file of its own first so that neither a crash
+		// nor another writer of the same route leaves a damaged route behind
+		File temp = null;
+		DataOutputStream out = null;
+		try {
+			temp = File.createTempFile(key.toString(), TEMP_SUFFIX, directory);
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp)));
+			out.writeInt(FILE_MAGIC);
+			out.writeLong(entry.created);
+			RoutePoints routePoints = entry.points;
+			out.writeInt(routePoints.size());
+			double[] coordinates = routePoints.getCoordinates();
+			for (int i = 0; i < routePoints.size() * 2; i++) {
+				out.writeDouble(coordinates[i]);
+			}
+			out.close();
+			out = null;
+			long length = temp.length();
+			long replaced = file.length();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to rename " + temp);
+			}
+			synchronized (disk) {
+				diskBytes += length - replaced;
+				if (diskBytes > maxDiskBytes) {
+					trim();
+				}
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to write " + file, e);
+			if (temp != null) {
+				temp.delete();
+			}
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// Already reported the original failure
+				}
+			}
+		}
+	}
+
+	/**
+	 * The first time the directory is used, deletes expired and unreadable
+	 * routes and the temporary files of interrupted writes, and measures the
+	 * routes that are left. Must hold the disk lock.
+	 */
+	private void sweep() {
+		if (swept) {
+			return;
+		}
+		swept = true;
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long total = 0;
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(TEMP_SUFFIX)) {
+				// No write can be under way before the first sweep
+				file.delete();
+			} else if (name.endsWith(FILE_SUFFIX)) {
+				if (isExpiredFile(file, now)) {
+					file.delete();
+					synchronized (memory) {
+						expirations++;
+					}
+				} else {
+					total += file.length();
+				}
+			}
+		}
+		diskBytes = total;
+		if (diskBytes > maxDiskBytes) {
+			trim();
+		}
+	}
+
+	/**
+	 * Deletes the least recently used routes until the directory takes at
+	 * most three quarters of its limit, so that trimming is not needed
+	 * again on the very next write. Must hold the disk lock.
+	 */
+	private void trim() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		ArrayList<File> routeFiles = new ArrayList<File>(files.length);
+		long total = 0;
+		for (File file : files) {
+			if (file.getName().endsWith(FILE_SUFFIX)) {
+				routeFiles.add(file);
+				total += file.length();
+			}
+		}
+		final HashMap<File, Long> used = new HashMap<File, Long>();
+		for (File file : routeFiles) {
+			used.put(file, file.lastModified());
+		}
+		Collections.sort(routeFiles, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long x = used.get(a), y = used.get(b);
+				return x < y ? -1 : x > y ? 1 : 0;
+			}
+		});
+		long target = maxDiskBytes / 4 * 3;
+		for (int i = 0; i < routeFiles.size() && total > target; i++) {
+			File file = routeFiles.get(i);
+			long length = file.length();
+			if (file.delete()) {
+				total -= length;
+				synchronized (memory) {
+					evictions++;
+				}
+			}
+		}
+		diskBytes = total;
+	}
+
+	/**
+	 * @return whether a route file has outlived the time to live or cannot
+	 *         be read
+	 */
+	private boolean isExpiredFile(File file, long now) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+			return in.readInt() != FILE_MAGIC
+					|| isExpired(in.readLong(), now);
+		} catch (IOException e) {
+			return true;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	private static void closeQuietly(DataInputStream in) {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Nothing more can be done with the stream
+			}
+		}
+	}
+
+	/**
+	 * A cached route and when it was fetched
+	 */
+	private static class Entry {
+		final RoutePoints points;
+		final long created;
+
+		Entry(RoutePoints points, long created) {
+			this.points = points;
+			this.created = created;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package sofia.gps;
+
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * Identifies a route request by its origin, destination and mode of travel,
+ * and by whether it asks for the full route or only its overview. The
+ * coordinates are rounded to a fixed number of decimal places, so that
+ * requests whose endpoints differ by less than that precision share a key.
+ */
+public final class RouteKey {
+
+	// Fields
+	// Coordinates scaled by 10^precision and rounded
+	private final long originLat, originLng, destinationLat, destinationLng;
+	private final int precision;
+	private final String mode;
+	private final boolean overview;
+
+	/**
+	 * Creates a key for the full route from origin to destination
+	 *
+	 * @param origin
+	 *            the starting location
+	 * @param destination
+	 *            the ending location
+	 * @param mode
+	 *            Either {@link MapDirection#MODE_DRIVING} or
+	 *            {@link MapDirection#MODE_WALKING}
+	 * @param precision
+	 *            the number of decimal places the coordinates are rounded to;
+	 *            4 places is roughly 11 meters
+	 */
+	public RouteKey(LatLng origin, LatLng destination, String mode,
+			int precision) {
+		this(origin, destination, mode, precision, false);
+	}
+
+	/**
+	 * Creates a key for the route from origin to destination
+	 *
+	 * @param origin
+	 *            the starting location
+	 * @param destination
+	 *            the ending location
+	 * @param mode
+	 *            Either {@link MapDirection#MODE_DRIVING} or
+	 *            {@link MapDirection#MODE_WALKING}
+	 * @param precision
+	 *            the number of decimal places the coordinates are rounded to;
+	 *            4 places is roughly 11 meters
+	 * @param overview
+	 *            whether the key is for the route's overview rather than its
+	 *            full detail
+	 */
+	public RouteKey(LatLng origin, LatLng destination, String mode,
+			int precision, boolean overview) {
+		if (precision < 0 || precision > 9) {
+			throw new IllegalArgumentException(
+					"precision must be between 0 and 9");
+		}
+		double scale = Math.pow(10, precision);
+		this.originLat = Math.round(origin.latitude * scale);
+		this.originLng = Math.round(origin.longitude * scale);
+		this.destinationLat = Math.round(destination.latitude * scale);
+		this.destinationLng = Math.round(destination.longitude * scale);
+		this.precision = precision;
+		this.mode = mode;
+		this.overview = overview;
+	}
+
+	/**
+	 * @return the mode of travel
+	 */
+	public String getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return whether the key is for the route's overview
+	 */
+	public boolean isOverview() {
+		return overview;
+	}
+
+	/**
+	 * @return the number of decimal places the coordinates are rounded to
+	 */
+	public int getPrecision() {
+		return precision;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof RouteKey)) {
+			return false;
+		}
+		RouteKey key = (RouteKey) other;
+		return originLat == key.originLat && originLng == key.originLng
+				&& destinationLat == key.destinationLat
+				&& destinationLng == key.destinationLng
+				&& precision == key.precision && overview == key.overview
+				&& mode.equals(key.mode);
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = mode.hashCode();
+		hash = hash * 31 + precision;
+		hash = hash * 31 + (overview ? 1 : 0);
+		hash = hash * 31 + (int) (originLat ^ (originLat >>> 32));
+		hash = hash * 31 + (int) (originLng ^ (originLng >>> 32));
+		hash = hash * 31 + (int) (destinationLat ^ (destinationLat >>> 32));
+		hash = hash * 31 + (int) (destinationLng ^ (destinationLng >>> 32));
+		return hash;
+	}
+
+	/**
+	 * Returns a string that identifies this key and contains only letters,
+	 * digits, '_' and '-', so that it can be used as a file name
+	 */
+	@Override
+	public String toString() {
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < mode.length(); i++) {
+			char c = mode.charAt(i);
+			name.append(Character.isLetterOrDigit(c) ? c : '_');
+		}
+		return name.append('_').append(precision).append('_')
+				.append(originLat).append('_').append(originLng).append('_')
+				.append(destinationLat).append('_').append(destinationLng)
+				.append(overview ? "_overview" : "").toString();
+	}
+}
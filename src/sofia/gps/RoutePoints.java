@@ -0,0 +1,192 @@
+package sofia.gps;
+
+import java.util.AbstractList;
+import java.util.List;
+
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * A growable list of route points stored as packed latitude/longitude pairs
+ * in a single double array, so that decoding a route with thousands of points
+ * does not allocate an object per point. A RoutePoints can be cleared and
+ * reused for the next route without giving up its storage.
+ */
+public class RoutePoints {
+
+	// Fields
+	// Latitude of point i is at 2 * i, longitude at 2 * i + 1
+	private double[] coordinates;
+	private int size;
+
+	/**
+	 * Creates an empty RoutePoints with room for 64 points
+	 */
+	public RoutePoints() {
+		this(64);
+	}
+
+	/**
+	 * Creates an empty RoutePoints with room for the given number of points
+	 *
+	 * @param capacity
+	 *            the number of points that can be added before growing
+	 */
+	public RoutePoints(int capacity) {
+		coordinates = new double[Math.max(capacity, 1) * 2];
+	}
+
+	/**
+	 * @return the number of points
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return whether there are no points
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @param index
+	 * @return the latitude of the point at index
+	 */
+	public double getLatitude(int index) {
+		checkIndex(index);
+		return coordinates[index * 2];
+	}
+
+	/**
+	 * @param index
+	 * @return the longitude of the point at index
+	 */
+	public double getLongitude(int index) {
+		checkIndex(index);
+		return coordinates[index * 2 + 1];
+	}
+
+	/**
+	 * Creates a LatLng for the point at index
+	 *
+	 * @param index
+	 * @return a new LatLng
+	 */
+	public LatLng get(int index) {
+		checkIndex(index);
+		return new LatLng(coordinates[index * 2], coordinates[index * 2 + 1]);
+	}
+
+	/**
+	 * Returns the backing array. Latitude of point i is at 2 * i and
+	 * longitude at 2 * i + 1; entries at or beyond 2 * {@link #size()} are
+	 * unused. The array is replaced when the RoutePoints grows.
+	 *
+	 * @return the packed coordinates
+	 */
+	public double[] getCoordinates() {
+		return coordinates;
+	}
+
+	/**
+	 * Appends a point
+	 *
+	 * @param latitude
+	 * @param longitude
+	 */
+	public void add(double latitude, double longitude) {
+		if (size * 2 == coordinates.length) {
+			ensureCapacity(size + 1);
+		}
+		coordinates[size * 2] = latitude;
+		coordinates[size * 2 + 1] = longitude;
+		size++;
+	}
+
+	/**
+	 * Appends a point
+	 *
+	 * @param point
+	 */
+	public void add(LatLng point) {
+		add(point.latitude, point.longitude);
+	}
+
+	/**
+	 * Appends every point of another RoutePoints
+	 *
+	 * @param points
+	 */
+	public void addAll(RoutePoints points) {
+		ensureCapacity(size + points.size);
+		System.arraycopy(points.coordinates, 0, coordinates, size * 2,
+				points.size * 2);
+		size += points.size;
+	}
+
+	/**
+	 * Makes sure that the given number of points fit without growing
+	 *
+	 * @param capacity
+	 *            the number of points
+	 */
+	public void ensureCapacity(int capacity) {
+		if (capacity * 2 > coordinates.length) {
+			int grown = Math.max(capacity * 2, coordinates.length * 2);
+			double[] larger = new double[grown];
+			System.arraycopy(coordinates, 0, larger, 0, size * 2);
+			coordinates = larger;
+		}
+	}
+
+	/**
+	 * Removes all of the points but keeps the storage for reuse
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Removes the points after the first size points
+	 *
+	 * @param size
+	 *            the number of points to keep; must not be more than there
+	 *            are
+	 */
+	public void truncate(int size) {
+		if (size < 0 || size > this.size) {
+			throw new IndexOutOfBoundsException("Size: " + size + ", Points: "
+					+ this.size);
+		}
+		this.size = size;
+	}
+
+	/**
+	 * Returns a read-only List view of the points, suitable for
+	 * PolylineOptions.addAll or Polyline.setPoints. LatLng objects are only
+	 * created as the view is read, and are not retained.
+	 *
+	 * @return a List view backed by this RoutePoints
+	 */
+	public List<LatLng> asList() {
+		return new AbstractList<LatLng>() {
+			@Override
+			public LatLng get(int index) {
+				return RoutePoints.this.get(index);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ size);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package sofia.gps;
+
+import java.util.Arrays;
+
+/**
+ * The per-node state of a shortest path search over a graph. The arrays are
+ * allocated once and reused between searches: a node's state only counts if
+ * it was written during the current search, so starting a new search does
+ * not have to clear them.
+ */
+final class SearchSpace {
+
+	// Fields
+	private final double[] distance;
+	// The node or edge that a node was reached through, depending on the
+	// search
+	private final int[] previous;
+	private final int[] stamp;
+	private int current;
+	final NodeHeap heap = new NodeHeap();
+
+	/**
+	 * @param nodeCount
+	 *            the number of nodes in the graph
+	 */
+	SearchSpace(int nodeCount) {
+		distance = new double[nodeCount];
+		previous = new int[nodeCount];
+		stamp = new int[nodeCount];
+	}
+
+	/**
+	 * Forgets the previous search
+	 */
+	void reset() {
+		current++;
+		if (current == Integer.MAX_VALUE) {
+			Arrays.fill(stamp, 0);
+			current = 1;
+		}
+		heap.clear();
+	}
+
+	/**
+	 * @param node
+	 * @return the best known distance to node, or infinity if it has not been
+	 *         reached
+	 */
+	double distance(int node) {
+		return stamp[node] == current ? distance[node]
+				: Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @param node
+	 * @return what node was reached through; only valid if it was reached
+	 */
+	int previous(int node) {
+		return previous[node];
+	}
+
+	/**
+	 * Records a better distance to node and queues it with the given key
+	 *
+	 * @param node
+	 * @param newDistance
+	 * @param through
+	 *            the node or edge it was reached through
+	 * @param key
+	 *            the heap key, which is newDistance plus any heuristic
+	 */
+	void reach(int node, double newDistance, int through, double key) {
+		stamp[node] = current;
+		distance[node] = newDistance;
+		previous[node] = through;
+		heap.push(node, key);
+	}
+}
@@ -0,0 +1,244 @@
+package sofia.gps;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Replays a track written by {@link TrackRecorder}, one fix at a time,
+ * reading the file through a small buffer so that a track of any length
+ * takes the same memory. A track that is still being recorded, or was not
+ * closed cleanly, can be read up to its last whole fix.
+ * </br></br>
+ * Call {@link #next()} until it returns false, reading each fix with the
+ * getters in between:
+ *
+ * <pre>
+ * TrackReader reader = new TrackReader(file);
+ * try {
+ * 	while (reader.next()) {
+ * 		points.add(reader.getLatitude(), reader.getLongitude());
+ * 	}
+ * } finally {
+ * 	reader.close();
+ * }
+ * </pre>
+ */
+public class TrackReader implements Closeable {
+
+	// Fields
+	private final FileInputStream in;
+	private final byte[] buffer = new byte[8192];
+	private int bufferPosition, bufferLength;
+	private final int precision;
+	private final double scale;
+	// The file offset of the next byte in the buffer, and of the end of the
+	// last whole record read
+	private long offset, end;
+	private boolean started;
+	// Whether the end of the track, or a record cut short by a crash, has
+	// been reached
+	private boolean ended;
+	private long index = -1;
+	private long latitude, longitude, time;
+
+	/**
+	 * Opens a track to read from its first fix
+	 *
+	 * @param file
+	 *            the track file
+	 * @throws IOException
+	 *             if the file cannot be read or does not hold a track
+	 */
+	public TrackReader(File file) throws IOException {
+		this(file, TrackRecorder.HEADER_SIZE);
+	}
+
+	/**
+	 * Opens a track to read from a checkpoint
+	 *
+	 * @param file
+	 *            the track file
+	 * @param start
+	 *            the file offset of a checkpoint record
+	 */
+	TrackReader(File file, long start) throws IOException {
+		in = new FileInputStream(file);
+		try {
+			offset = 0;
+			if (readInt() != TrackRecorder.FILE_MAGIC) {
+				throw new IOException("Not a track file");
+			}
+			precision = readInt();
+			if (precision != TrackRecorder.PRECISION_E5
+					&& precision != TrackRecorder.PRECISION_E7) {
+				throw new IOException("Corrupt track file");
+			}
+			in.getChannel().position(start);
+			bufferPosition = bufferLength = 0;
+			offset = end = start;
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		scale = Math.pow(10, precision);
+	}
+
+	/**
+	 * @return the precision of the stored coordinates,
+	 *         TrackRecorder.PRECISION_E5 or TrackRecorder.PRECISION_E7
+	 */
+	public int getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * Moves to the next fix
+	 *
+	 * @return true if there is one, false at the end of the track
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public boolean next() throws IOException {
+		if (ended) {
+			return false;
+		}
+		int tag = read();
+		if (tag == TrackRecorder.TAG_CHECKPOINT) {
+			long fix = readVarint();
+			long lat = readVarint();
+			long lng = readVarint();
+			long t = readVarint();
+			if (ended) {
+				return false;
+			}
+			index = fix;
+			latitude = unzigzag(lat);
+			longitude = unzigzag(lng);
+			time = t;
+			started = true;
+		} else if (tag == TrackRecorder.TAG_DELTA && started) {
+			long lat = readVarint();
+			long lng = readVarint();
+			long t = readVarint();
+			if (ended) {
+				return false;
+			}
+			index++;
+			latitude += unzigzag(lat);
+			longitude += unzigzag(lng);
+			time += t;
+		} else {
+			// The end of the track, or what a crash left after it
+			ended = true;
+			return false;
+		}
+		end = offset;
+		return true;
+	}
+
+	/**
+	 * @return the number of fixes recorded before the current one
+	 */
+	public long getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the latitude of the current fix
+	 */
+	public double getLatitude() {
+		return latitude / scale;
+	}
+
+	/**
+	 * @return the longitude of the current fix
+	 */
+	public double getLongitude() {
+		return longitude / scale;
+	}
+
+	/**
+	 * @return when the current fix was taken, in milliseconds since the epoch
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Closes the file
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+
+	long getScaledLatitude() {
+		return latitude;
+	}
+
+	long getScaledLongitude() {
+		return longitude;
+	}
+
+	/**
+	 * @return the file offset just past the last whole record read
+	 */
+	long getOffset() {
+		return end;
+	}
+
+	/**
+	 * @return the next byte, or -1 at the end of the file
+	 */
+	private int read() throws IOException {
+		if (bufferPosition == bufferLength) {
+			bufferLength = in.read(buffer);
+			bufferPosition = 0;
+			if (bufferLength <= 0) {
+				bufferLength = 0;
+				return -1;
+			}
+		}
+		offset++;
+		return buffer[bufferPosition++] & 0xff;
+	}
+
+	private int readInt() throws IOException {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			int b = read();
+			if (b < 0) {
+				throw new IOException("Not a track file");
+			}
+			value = value << 8 | b;
+		}
+		return value;
+	}
+
+	/**
+	 * @return the next varint, or 0 with ended set if the file ends or
+	 *         the varint is malformed
+	 */
+	private long readVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = read();
+			if (b < 0) {
+				break;
+			}
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		ended = true;
+		return 0;
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,308 @@
+package sofia.gps;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.location.Location;
+
+/**
+ * Records a GPS track to a file as it is received, so that tracks hours long
+ * need not be held in memory. The file is append-only and written through a
+ * memory-mapped window, so recording a fix is a few byte writes with no
+ * system call. Coordinates are stored as integers scaled by 1E5 or 1E7, and
+ * each fix is stored as the difference from the one before it in a
+ * variable-length encoding, which takes about 4 to 8 bytes per fix.
+ * </br></br>
+ * Every so many fixes, a checkpoint fix is stored whole rather than as a
+ * difference, its position is noted in the file header and the file is
+ * flushed to disk. Opening a file that was not closed cleanly, for example
+ * after the app was killed, recovers every fix up to the last one fully
+ * written, scanning forward only from the last checkpoint, and recording
+ * continues after it. Read a track back with {@link TrackReader}.
+ * </br></br>
+ * Pass a TrackRecorder to
+ * {@link LocationTracker#setTrackRecorder(TrackRecorder)} to record the fixes
+ * MapScreen hands to locationDidChange. A TrackRecorder can be used from any
+ * thread.
+ */
+public class TrackRecorder implements Closeable {
+
+	// Constants
+	public static final int PRECISION_E5 = 5, PRECISION_E7 = 7;
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 256;
+
+	static final int FILE_MAGIC = 0x54524b31; // "TRK1"
+	// Magic, precision and the offset of the last checkpoint
+	static final int HEADER_SIZE = 16;
+	static final int CHECKPOINT_OFFSET = 8;
+	// Record tags; a zero tag marks the end of the track
+	static final byte TAG_END = 0, TAG_CHECKPOINT = 1, TAG_DELTA = 2;
+	// A tag and four varints of at most 10 bytes each
+	private static final int MAX_RECORD_SIZE = 41;
+	// The size of the mapped window the track is written through
+	private static final int WINDOW_SIZE = 256 * 1024;
+
+	// Fields
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final MappedByteBuffer header;
+	private final int precision;
+	private final double scale;
+	private MappedByteBuffer window;
+	// The file offset the window starts at, and where the next record goes
+	// within it
+	private long windowStart;
+	private int position;
+	private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+	private boolean checkpointNext;
+	private long fixCount;
+	// The last fix written, scaled
+	private long lastLatitude, lastLongitude, lastTime;
+
+	/**
+	 * Opens a track to record at a precision of 1E-7 degrees, about 1 cm
+	 *
+	 * @param file
+	 *            the track file, which is created if it does not exist
+	 * @throws IOException
+	 *             if the file cannot be opened or holds something else
+	 */
+	public TrackRecorder(File file) throws IOException {
+		this(file, PRECISION_E7);
+	}
+
+	/**
+	 * Opens a track to record. If the file holds a track already, including
+	 * one that was not closed, new fixes are appended to it.
+	 *
+	 * @param file
+	 *            the track file, which is created if it does not exist
+	 * @param precision
+	 *            PRECISION_E5 or PRECISION_E7, the number of decimal places
+	 *            of the degrees stored; it must match that of an existing
+	 *            track
+	 * @throws IOException
+	 *             if the file cannot be opened or holds something else
+	 */
+	public TrackRecorder(File file, int precision) throws IOException {
+		if (precision != PRECISION_E5 && precision != PRECISION_E7) {
+			throw new IllegalArgumentException("Unsupported precision "
+					+ precision);
+		}
+		this.precision = precision;
+		scale = Math.pow(10, precision);
+		boolean exists = file.length() >= HEADER_SIZE;
+		this.file = new RandomAccessFile(file, "rw");
+		try {
+			channel = this.file.getChannel();
+			header = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_SIZE);
+			if (exists) {
+				recover(file);
+			} else {
+				header.putInt(0, FILE_MAGIC);
+				header.putInt(4, precision);
+				header.putLong(CHECKPOINT_OFFSET, 0);
+				mapWindow(HEADER_SIZE);
+				checkpointNext = true;
+			}
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the precision of the stored coordinates, PRECISION_E5 or
+	 *         PRECISION_E7
+	 */
+	public int getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * @return the checkpointInterval
+	 */
+	public synchronized int getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	/**
+	 * Set how many fixes are recorded between checkpoints. Fewer make
+	 * recovery faster and lose less on power failure, at the cost of a
+	 * larger file and more disk writes. </br></br> By default this is 256.
+	 *
+	 * @param checkpointInterval
+	 *            the number of fixes, at least 1
+	 */
+	public synchronized void setCheckpointInterval(int checkpointInterval) {
+		this.checkpointInterval = Math.max(1, checkpointInterval);
+	}
+
+	/**
+	 * @return the number of fixes in the track, including those recorded
+	 *         before it was opened
+	 */
+	public synchronized long getFixCount() {
+		return fixCount;
+	}
+
+	/**
+	 * @return the length of the recorded track, in bytes
+	 */
+	public synchronized long getSize() {
+		return windowStart + position;
+	}
+
+	/**
+	 * Appends a fix to the track
+	 *
+	 * @param location
+	 * @throws IOException
+	 *             if the file cannot be extended
+	 */
+	public void record(Location location) throws IOException {
+		record(location.getLatitude(), location.getLongitude(),
+				location.getTime());
+	}
+
+	/**
+	 * Appends a fix to the track
+	 *
+	 * @param latitude
+	 * @param longitude
+	 * @param timeMillis
+	 *            when the fix was taken
+	 * @throws IOException
+	 *             if the file cannot be extended
+	 */
+	public synchronized void record(double latitude, double longitude,
+			long timeMillis) throws IOException {
+		if (window == null) {
+			throw new IOException("Track is closed");
+		}
+		if (position + MAX_RECORD_SIZE > window.capacity()) {
+			window.force();
+			mapWindow(windowStart + position);
+		}
+		long lat = Math.round(latitude * scale);
+		long lng = Math.round(longitude * scale);
+
+		// The tag is written last, so a record cut short by a crash still
+		// reads as the end of the track
+		int start = position;
+		position++;
+		boolean checkpoint = checkpointNext || timeMillis < lastTime
+				|| fixCount % checkpointInterval == 0;
+		if (checkpoint) {
+			putVarint(fixCount);
+			putVarint(zigzag(lat));
+			putVarint(zigzag(lng));
+			putVarint(timeMillis);
+		} else {
+			putVarint(zigzag(lat - lastLatitude));
+			putVarint(zigzag(lng - lastLongitude));
+			putVarint(timeMillis - lastTime);
+		}
+		window.put(start, checkpoint ? TAG_CHECKPOINT : TAG_DELTA);
+		lastLatitude = lat;
+		lastLongitude = lng;
+		lastTime = timeMillis;
+		fixCount++;
+
+		if (checkpoint) {
+			checkpointNext = false;
+			header.putLong(CHECKPOINT_OFFSET, windowStart + start);
+			window.force();
+			header.force();
+		}
+	}
+
+	/**
+	 * Flushes the track to disk now and stores the next fix as a checkpoint
+	 */
+	public synchronized void checkpoint() {
+		if (window != null) {
+			checkpointNext = true;
+			window.force();
+			header.force();
+		}
+	}
+
+	/**
+	 * Flushes the track to disk and closes it, trimming the file to the
+	 * length of the track
+	 *
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public synchronized void close() throws IOException {
+		if (window == null) {
+			return;
+		}
+		window.force();
+		header.force();
+		window = null;
+		try {
+			channel.truncate(windowStart + position);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Finds the end of an existing track and the last fix in it
+	 */
+	private void recover(File path) throws IOException {
+		if (header.getInt(0) != FILE_MAGIC) {
+			throw new IOException("Not a track file");
+		}
+		if (header.getInt(4) != precision) {
+			throw new IOException("Track precision is E" + header.getInt(4));
+		}
+		long offset = header.getLong(CHECKPOINT_OFFSET);
+		TrackReader reader = new TrackReader(path,
+				offset > 0 ? offset : HEADER_SIZE);
+		long end;
+		try {
+			while (reader.next()) {
+				lastLatitude = reader.getScaledLatitude();
+				lastLongitude = reader.getScaledLongitude();
+				lastTime = reader.getTime();
+				fixCount = reader.getIndex() + 1;
+			}
+			end = reader.getOffset();
+		} finally {
+			reader.close();
+		}
+		mapWindow(end);
+		// Clear whatever a crash left of a record after the last whole one
+		for (int i = 0; i < MAX_RECORD_SIZE; i++) {
+			window.put(i, TAG_END);
+		}
+		checkpointNext = true;
+	}
+
+	private void mapWindow(long start) throws IOException {
+		windowStart = start;
+		position = 0;
+		window = channel.map(FileChannel.MapMode.READ_WRITE, start,
+				WINDOW_SIZE);
+	}
+
+	private void putVarint(long value) {
+		while ((value & ~0x7fL) != 0) {
+			window.put(position++, (byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		window.put(position++, (byte) value);
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+}
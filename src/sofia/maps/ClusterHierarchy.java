@@ -0,0 +1,97 @@
+package sofia.maps;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The MapItems and MapClusters to show at each whole-number zoom level. At
+ * the most zoomed in level every MapItem is shown on its own; each level out
+ * from there groups the entries of the level before it by the square grid
+ * cell their position falls in, so a cluster's children are always whole
+ * entries of the next level in. An entry that is alone in its cell is carried
+ * to the next level out unchanged.
+ */
+class ClusterHierarchy {
+
+	// Fields
+	// levels.get(z - MIN_ZOOM) is shown for zoom levels in [z, z + 1)
+	private final ArrayList<List<MapItem>> levels;
+
+	/**
+	 * Builds the hierarchy. This is expensive for many MapItems and should be
+	 * done off the main thread; the MapItems must not be moved meanwhile.
+	 *
+	 * @param items
+	 *            the MapItems to cluster
+	 * @param gridSize
+	 *            the width of a grid cell, in density-independent pixels
+	 */
+	ClusterHierarchy(List<MapItem> items, int gridSize) {
+		int count = RouteDetail.MAX_ZOOM - RouteDetail.MIN_ZOOM + 1;
+		levels = new ArrayList<List<MapItem>>(count);
+		for (int i = 0; i < count; i++) {
+			levels.add(null);
+		}
+
+		List<MapItem> finer = new ArrayList<MapItem>(items.size());
+		for (MapItem item : items) {
+			if (item != null && item.getPosition() != null) {
+				finer.add(item);
+			}
+		}
+		levels.set(count - 1, finer);
+
+		for (int z = RouteDetail.MAX_ZOOM - 1; z >= RouteDetail.MIN_ZOOM; z--) {
+			// The number of cells across the whole world at this zoom, for
+			// 256dp tiles
+			double cells = 256.0 * (1 << z) / gridSize;
+			LinkedHashMap<Long, List<MapItem>> groups = new LinkedHashMap<Long, List<MapItem>>();
+			for (MapItem entry : finer) {
+				double latitude = Math.max(-85.05112878, Math.min(
+						85.05112878, entry.getPosition().latitude));
+				double sin = Math.sin(Math.toRadians(latitude));
+				double x = (entry.getPosition().longitude + 180) / 360;
+				double y = 0.5 - Math.log((1 + sin) / (1 - sin))
+						/ (4 * Math.PI);
+				long key = ((long) Math.floor(x * cells) << 32)
+						| ((long) Math.floor(y * cells) & 0xffffffffL);
+				List<MapItem> group = groups.get(key);
+				if (group == null) {
+					group = new ArrayList<MapItem>(4);
+					groups.put(key, group);
+				}
+				group.add(entry);
+			}
+
+			List<MapItem> level = new ArrayList<MapItem>(groups.size());
+			for (List<MapItem> group : groups.values()) {
+				level.add(group.size() == 1 ? group.get(0) : new MapCluster(
+						group, z));
+			}
+			levels.set(z - RouteDetail.MIN_ZOOM, level);
+			finer = level;
+		}
+	}
+
+	/**
+	 * @param zoom
+	 *            a camera zoom level
+	 * @return the MapItems and MapClusters to show at that zoom; the list
+	 *         must not be modified
+	 */
+	List<MapItem> getLevel(float zoom) {
+		return levels.get(levelFor(zoom) - RouteDetail.MIN_ZOOM);
+	}
+
+	/**
+	 * @param zoom
+	 *            a camera zoom level
+	 * @return the whole-number zoom level whose entries are shown at zoom
+	 */
+	static int levelFor(float zoom) {
+		int level = (int) Math.floor(zoom);
+		return Math.max(RouteDetail.MIN_ZOOM, Math.min(RouteDetail.MAX_ZOOM,
+				level));
+	}
+}
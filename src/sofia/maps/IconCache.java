@@ -0,0 +1,256 @@
+package sofia.maps;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffColorFilter;
+
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+
+/**
+ * Hands out shared BitmapDescriptors for MapItem icons, so that MapItems with
+ * the same icon share one instance instead of each creating its own.
+ * Descriptors for resources and default markers are created once and kept.
+ * Generated icons, such as tinted or labeled pins, are drawn once and kept in
+ * a least recently used cache bounded by the memory their bitmaps use, which
+ * is emptied when the system runs low on memory.
+ * </br></br>
+ * Every MapScreen has one, returned by {@link MapScreen#getIconCache()}. An
+ * IconCache can be used from any thread.
+ */
+public class IconCache {
+
+	// Fields
+	private final Resources resources;
+	private final HashMap<Integer, BitmapDescriptor> resourceIcons = new HashMap<Integer, BitmapDescriptor>();
+	private final HashMap<Float, BitmapDescriptor> defaultIcons = new HashMap<Float, BitmapDescriptor>();
+	// Access ordered, so the least recently used icon comes first
+	private final LinkedHashMap<String, GeneratedIcon> generatedIcons = new LinkedHashMap<String, GeneratedIcon>(
+			16, 0.75f, true);
+	private final int maxBytes;
+	private int generatedBytes;
+	private long hitCount, missCount;
+
+	/**
+	 * @param resources
+	 *            the resources icons are loaded from
+	 * @param maxBytes
+	 *            the most memory the bitmaps of generated icons may use
+	 */
+	public IconCache(Resources resources, int maxBytes) {
+		this.resources = resources;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the icon for an image resource
+	 *
+	 * @param resourceId
+	 *            the id of a drawable resource
+	 * @return the shared descriptor
+	 */
+	public synchronized BitmapDescriptor getResourceIcon(int resourceId) {
+		BitmapDescriptor icon = resourceIcons.get(resourceId);
+		if (icon == null) {
+			missCount++;
+			icon = BitmapDescriptorFactory.fromResource(resourceId);
+			resourceIcons.put(resourceId, icon);
+		} else {
+			hitCount++;
+		}
+		return icon;
+	}
+
+	/**
+	 * Returns the default marker icon in a given color
+	 *
+	 * @param hue
+	 *            the hue of the marker, from 0 up to 360
+	 * @return the shared descriptor
+	 */
+	public synchronized BitmapDescriptor getDefaultIcon(float hue) {
+		BitmapDescriptor icon = defaultIcons.get(hue);
+		if (icon == null) {
+			missCount++;
+			icon = BitmapDescriptorFactory.defaultMarker(hue);
+			defaultIcons.put(hue, icon);
+		} else {
+			hitCount++;
+		}
+		return icon;
+	}
+
+	/**
+	 * Returns an image resource drawn in a single color, keeping its shape
+	 *
+	 * @param resourceId
+	 *            the id of a drawable resource
+	 * @param color
+	 *            the ARGB color to fill the image's opaque pixels with
+	 * @param size
+	 *            the width and height to scale the image to, in pixels, or 0
+	 *            to keep its size
+	 * @return the shared descriptor
+	 */
+	public BitmapDescriptor getTintedIcon(int resourceId, int color, int size) {
+		String key = "tint:" + resourceId + ":" + color + ":" + size;
+		GeneratedIcon icon = getGenerated(key);
+		if (icon == null) {
+			Bitmap source = BitmapFactory.decodeResource(resources, resourceId);
+			if (size > 0) {
+				source = Bitmap.createScaledBitmap(source, size, size, true);
+			}
+			Bitmap bitmap = Bitmap.createBitmap(source.getWidth(),
+					source.getHeight(), Bitmap.Config.ARGB_8888);
+			Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+			paint.setColorFilter(new PorterDuffColorFilter(color,
+					PorterDuff.Mode.SRC_IN));
+			new Canvas(bitmap).drawBitmap(source, 0, 0, paint);
+			icon = putGenerated(key, bitmap);
+		}
+		return icon.descriptor;
+	}
+
+	/**
+	 * Returns a filled circle with a short label, such as a number, centered
+	 * in it
+	 *
+	 * @param label
+	 * @param color
+	 *            the ARGB color of the circle; the label is white
+	 * @param size
+	 *            the diameter of the circle, in pixels
+	 * @return the shared descriptor
+	 */
+	public BitmapDescriptor getLabeledIcon(String label, int color, int size) {
+		String key = "label:" + color + ":" + size + ":" + label;
+		GeneratedIcon icon = getGenerated(key);
+		if (icon == null) {
+			Bitmap bitmap = Bitmap.createBitmap(size, size,
+					Bitmap.Config.ARGB_8888);
+			Canvas canvas = new Canvas(bitmap);
+			Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+			paint.setColor(color);
+			canvas.drawCircle(size / 2f, size / 2f, size / 2f, paint);
+			paint.setColor(0xffffffff);
+			paint.setTextSize(size * 0.35f);
+			paint.setFakeBoldText(true);
+			paint.setTextAlign(Paint.Align.CENTER);
+			canvas.drawText(label, size / 2f, size / 2f
+					- (paint.descent() + paint.ascent()) / 2, paint);
+			icon = putGenerated(key, bitmap);
+		}
+		return icon.descriptor;
+	}
+
+	/**
+	 * Releases generated icons in response to
+	 * {@link ComponentCallbacks2#onTrimMemory(int)}. Markers already showing
+	 * an icon keep showing it.
+	 *
+	 * @param level
+	 *            the level passed to onTrimMemory
+	 */
+	public synchronized void trimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+			trimGenerated(0);
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+				|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+				|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			trimGenerated(maxBytes / 2);
+		}
+	}
+
+	/**
+	 * Releases every cached icon
+	 */
+	public synchronized void clear() {
+		resourceIcons.clear();
+		defaultIcons.clear();
+		trimGenerated(0);
+	}
+
+	/**
+	 * @return the number of requests answered with a cached icon
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * @return the number of requests that had to create an icon
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * @return the memory the bitmaps of the cached generated icons use, in
+	 *         bytes
+	 */
+	public synchronized int getGeneratedSize() {
+		return generatedBytes;
+	}
+
+	private synchronized GeneratedIcon getGenerated(String key) {
+		GeneratedIcon icon = generatedIcons.get(key);
+		if (icon == null) {
+			missCount++;
+		} else {
+			hitCount++;
+		}
+		return icon;
+	}
+
+	private GeneratedIcon putGenerated(String key, Bitmap bitmap) {
+		GeneratedIcon icon = new GeneratedIcon(bitmap);
+		synchronized (this) {
+			// Another thread may have drawn the same icon meanwhile; either
+			// copy is fine
+			GeneratedIcon old = generatedIcons.put(key, icon);
+			if (old != null) {
+				generatedBytes -= old.bytes;
+			}
+			generatedBytes += icon.bytes;
+			trimGenerated(maxBytes);
+		}
+		return icon;
+	}
+
+	/**
+	 * Drops the least recently used generated icons until their bitmaps use
+	 * at most the given memory. Must hold the lock on this.
+	 *
+	 * @param size
+	 *            the most bytes the remaining icons may use
+	 */
+	private void trimGenerated(int size) {
+		Iterator<GeneratedIcon> eldest = generatedIcons.values().iterator();
+		while (generatedBytes > size && eldest.hasNext()) {
+			generatedBytes -= eldest.next().bytes;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * A generated bitmap and its descriptor
+	 */
+	private static class GeneratedIcon {
+		final BitmapDescriptor descriptor;
+		final int bytes;
+
+		GeneratedIcon(Bitmap bitmap) {
+			descriptor = BitmapDescriptorFactory.fromBitmap(bitmap);
+			bytes = bitmap.getRowBytes() * bitmap.getHeight();
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package sofia.maps;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+/**
+ * A group of nearby MapItems that is shown as a single Marker, labeled with
+ * the number of MapItems in it, when the map is zoomed out. Clusters are
+ * created by {@link MapScreen#clusterMapItems(java.util.Collection)}; clicking
+ * one dispatches to mapItemWasClicked like any other MapItem, and then zooms
+ * in until the cluster splits apart.
+ */
+public class MapCluster extends MapItem {
+
+	// Fields
+	// The MapItems and MapClusters at the next zoom level in
+	private final List<MapItem> children;
+	private final int size;
+	private final int zoom;
+	private final double south, west, north, east;
+
+	/**
+	 * Creates a cluster of the given entries of the next zoom level in,
+	 * positioned at the center of its MapItems
+	 *
+	 * @param children
+	 *            at least two MapItems or MapClusters
+	 * @param zoom
+	 *            the most zoomed in level the cluster is shown at
+	 */
+	MapCluster(List<MapItem> children, int zoom) {
+		super(centerLatitude(children), centerLongitude(children));
+		this.children = Collections.unmodifiableList(children);
+		this.zoom = zoom;
+
+		int count = 0;
+		double s = 90, w = 180, n = -90, e = -180;
+		for (MapItem child : children) {
+			if (child instanceof MapCluster) {
+				MapCluster cluster = (MapCluster) child;
+				count += cluster.size;
+				s = Math.min(s, cluster.south);
+				w = Math.min(w, cluster.west);
+				n = Math.max(n, cluster.north);
+				e = Math.max(e, cluster.east);
+			} else {
+				LatLng position = child.getPosition();
+				count++;
+				s = Math.min(s, position.latitude);
+				w = Math.min(w, position.longitude);
+				n = Math.max(n, position.latitude);
+				e = Math.max(e, position.longitude);
+			}
+		}
+		this.size = count;
+		this.south = s;
+		this.west = w;
+		this.north = n;
+		this.east = e;
+		setTitle(count + " items");
+	}
+
+	/**
+	 * @return the number of MapItems in this cluster
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the most zoomed in level this cluster is shown at; it is also
+	 *         shown at lower levels until it joins a larger cluster
+	 */
+	public int getZoom() {
+		return zoom;
+	}
+
+	/**
+	 * @return the MapItems and MapClusters this cluster splits into at the
+	 *         next zoom level in
+	 */
+	public List<MapItem> getChildren() {
+		return children;
+	}
+
+	/**
+	 * @return every MapItem in this cluster
+	 */
+	public List<MapItem> getItems() {
+		ArrayList<MapItem> items = new ArrayList<MapItem>(size);
+		ArrayList<MapItem> pending = new ArrayList<MapItem>(children);
+		while (!pending.isEmpty()) {
+			MapItem item = pending.remove(pending.size() - 1);
+			if (item instanceof MapCluster) {
+				pending.addAll(((MapCluster) item).children);
+			} else {
+				items.add(item);
+			}
+		}
+		return items;
+	}
+
+	/**
+	 * @return the smallest bounds that contain every MapItem in this cluster
+	 */
+	public LatLngBounds getBounds() {
+		return new LatLngBounds(new LatLng(south, west), new LatLng(north,
+				east));
+	}
+
+	/**
+	 * @return the zoom level at which this cluster splits into its children
+	 */
+	public int getExpansionZoom() {
+		return zoom + 1;
+	}
+
+	private static double centerLatitude(List<MapItem> children) {
+		double sum = 0;
+		int count = 0;
+		for (MapItem child : children) {
+			int weight = child instanceof MapCluster ? ((MapCluster) child).size
+					: 1;
+			sum += child.getPosition().latitude * weight;
+			count += weight;
+		}
+		return sum / count;
+	}
+
+	private static double centerLongitude(List<MapItem> children) {
+		double sum = 0;
+		int count = 0;
+		for (MapItem child : children) {
+			int weight = child instanceof MapCluster ? ((MapCluster) child).size
+					: 1;
+			sum += child.getPosition().longitude * weight;
+			count += weight;
+		}
+		return sum / count;
+	}
+}
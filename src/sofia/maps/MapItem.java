@@ -1,18 +1,37 @@
 package sofia.maps;
 
 import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
 
 /**
  * Represents a Google Maps API V2 Marker on a map
+ * </br></br>
+ * While a MapItem is on a MapScreen, it stays bound to the Marker that shows
+ * it: changing it with its setters updates that Marker directly, without
+ * removing and adding it again. The setters may be called from any thread;
+ * the Marker is updated on the main thread, at most once per frame, with the
+ * latest values.
  * 
  * @author Cameron Wyatt
  * @author Tyler Lenig
  */
 public class MapItem {
 
+	// Properties that can change while a MapItem is on the map
+	static final int POSITION = 1;
+	static final int TITLE = 1 << 1;
+	static final int SNIPPET = 1 << 2;
+	static final int ICON = 1 << 3;
+	static final int ALPHA = 1 << 4;
+	static final int ROTATION = 1 << 5;
+	static final int FLAT = 1 << 6;
+	static final int DRAGGABLE = 1 << 7;
+	static final int VISIBLE = 1 << 8;
+	static final int ANCHOR = 1 << 9;
+
 	// Fields
 	// The Google Maps API V2 MarkerOptions object that is used to specify
 	// options for a Marker
@@ -26,6 +45,16 @@ public class MapItem {
 	private String title = "";
 	private String snippet = "";
 	private BitmapDescriptor icon;
+	// Identifies the MapItem across snapshots passed to
+	// MapScreen.setMapItems
+	private String id;
+
+	// The Marker showing this MapItem and the MarkerUpdater that keeps it up
+	// to date, while it is on the map; guarded by this
+	private Marker marker;
+	private MarkerUpdater updater;
+	// The properties changed since marker was last updated; guarded by this
+	private int changes;
 
 	/**
 	 * Default constructor
@@ -49,6 +78,23 @@ public class MapItem {
 		mapItem = new MarkerOptions().position(position);
 	}
 
+	/**
+	 * Creates a MapItem with the given id, lat and lon
+	 * 
+	 * @param id
+	 *            The stable id of the MapItem, used by
+	 *            {@link MapScreen#setMapItems(java.util.Collection,
+	 *            MapItemBatchListener)}
+	 * @param lat
+	 *            The latitude of the MapItem
+	 * @param lon
+	 *            The longitude of the MapItem
+	 */
+	public MapItem(String id, double lat, double lon) {
+		this(lat, lon);
+		this.id = id;
+	}
+
 	/**
 	 * @return the Google Maps API V2 MarkerOptions object
 	 */
@@ -64,6 +110,25 @@ public class MapItem {
 		this.mapItem = myItem;
 	}
 
+	/**
+	 * @return the stable id of the MapItem, or null if it has none
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Sets the stable id of the MapItem. MapItems with the same id are
+	 * treated as the same item by
+	 * {@link MapScreen#setMapItems(java.util.Collection, MapItemBatchListener)},
+	 * so the id should not change while the MapItem is on the map.
+	 * 
+	 * @param id
+	 */
+	public void setId(String id) {
+		this.id = id;
+	}
+
 	/**
 	 * @return whether the MapItem is draggable
 	 */
@@ -79,6 +144,7 @@ public class MapItem {
 	public void setDraggable(boolean draggable) {
 		this.draggable = draggable;
 		this.mapItem.draggable(draggable);
+		changed(DRAGGABLE);
 	}
 
 	/**
@@ -101,6 +167,7 @@ public class MapItem {
 	public void setFlat(boolean flat) {
 		this.flat = flat;
 		this.mapItem.flat(flat);
+		changed(FLAT);
 	}
 
 	/**
@@ -118,6 +185,7 @@ public class MapItem {
 	public void setVisible(boolean visible) {
 		this.visible = visible;
 		this.mapItem.visible(visible);
+		changed(VISIBLE);
 	}
 
 	/**
@@ -137,6 +205,7 @@ public class MapItem {
 	public void setAlpha(float alpha) {
 		this.alpha = alpha;
 		this.mapItem.alpha(alpha);
+		changed(ALPHA);
 	}
 
 	/**
@@ -155,6 +224,7 @@ public class MapItem {
 	 */
 	public void setAnchor(float anchorU, float anchorV) {
 		this.mapItem.anchor(anchorU, anchorV);
+		changed(ANCHOR);
 	}
 
 	/**
@@ -179,6 +249,7 @@ public class MapItem {
 	public void setRotation(float rotation) {
 		this.rotation = rotation;
 		this.mapItem.rotation(rotation);
+		changed(ROTATION);
 	}
 
 	/**
@@ -196,6 +267,7 @@ public class MapItem {
 	public void setPosition(LatLng position) {
 		this.position = position;
 		this.mapItem.position(position);
+		changed(POSITION);
 	}
 
 	/**
@@ -213,6 +285,7 @@ public class MapItem {
 	public void setTitle(String title) {
 		this.title = title;
 		this.mapItem.title(title);
+		changed(TITLE);
 	}
 
 	/**
@@ -230,6 +303,7 @@ public class MapItem {
 	public void setSnippet(String snippet) {
 		this.snippet = snippet;
 		this.mapItem.snippet(snippet);
+		changed(SNIPPET);
 	}
 
 	/**
@@ -247,6 +321,92 @@ public class MapItem {
 	public void setIcon(BitmapDescriptor icon) {
 		this.icon = icon;
 		this.mapItem.icon(icon);
+		changed(ICON);
+	}
+
+	/**
+	 * Binds this MapItem to the Marker that shows it
+	 * 
+	 * @param marker
+	 * @param updater
+	 *            applies later changes to the Marker
+	 */
+	synchronized void bind(Marker marker, MarkerUpdater updater) {
+		this.marker = marker;
+		this.updater = updater;
+		changes = 0;
+	}
+
+	/**
+	 * Unbinds this MapItem from its Marker, which no longer shows it
+	 */
+	synchronized void unbind() {
+		marker = null;
+		updater = null;
+		changes = 0;
+	}
+
+	/**
+	 * Records that a property changed, and queues this MapItem to have its
+	 * Marker updated if it is on the map and not already queued
+	 * 
+	 * @param property
+	 */
+	private synchronized void changed(int property) {
+		if (marker == null) {
+			return;
+		}
+		boolean queued = changes != 0;
+		changes |= property;
+		if (!queued) {
+			updater.schedule(this);
+		}
+	}
+
+	/**
+	 * Sets the properties that changed since the last call on the Marker.
+	 * Must be called on the main thread.
+	 * 
+	 * @return the properties that were set
+	 */
+	synchronized int applyChanges() {
+		int applied = changes;
+		changes = 0;
+		if (marker == null) {
+			return 0;
+		}
+		if ((applied & POSITION) != 0) {
+			marker.setPosition(mapItem.getPosition());
+		}
+		if ((applied & TITLE) != 0) {
+			marker.setTitle(mapItem.getTitle());
+		}
+		if ((applied & SNIPPET) != 0) {
+			marker.setSnippet(mapItem.getSnippet());
+		}
+		if ((applied & ICON) != 0) {
+			marker.setIcon(mapItem.getIcon() != null ? mapItem.getIcon()
+					: BitmapDescriptorFactory.defaultMarker());
+		}
+		if ((applied & ALPHA) != 0) {
+			marker.setAlpha(mapItem.getAlpha());
+		}
+		if ((applied & ROTATION) != 0) {
+			marker.setRotation(mapItem.getRotation());
+		}
+		if ((applied & FLAT) != 0) {
+			marker.setFlat(mapItem.isFlat());
+		}
+		if ((applied & DRAGGABLE) != 0) {
+			marker.setDraggable(mapItem.isDraggable());
+		}
+		if ((applied & VISIBLE) != 0) {
+			marker.setVisible(mapItem.isVisible());
+		}
+		if ((applied & ANCHOR) != 0) {
+			marker.setAnchor(mapItem.getAnchorU(), mapItem.getAnchorV());
+		}
+		return applied;
 	}
 
 	/**
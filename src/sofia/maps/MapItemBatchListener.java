@@ -0,0 +1,27 @@
+package sofia.maps;
+
+/**
+ * Receives progress from {@link MapScreen#addMapItems(java.util.Collection,
+ * boolean, MapItemBatchListener)} and
+ * {@link MapScreen#removeMapItems(java.util.Collection, MapItemBatchListener)}.
+ * Both methods are called on the main thread. Neither is called after the
+ * batch is cancelled.
+ */
+public interface MapItemBatchListener {
+
+	/**
+	 * Called after each pass that adds or removes Markers
+	 *
+	 * @param finished
+	 *            how many MapItems have been added or removed so far
+	 * @param total
+	 *            how many MapItems are in the batch
+	 */
+	void mapItemBatchProgressed(int finished, int total);
+
+	/**
+	 * Called once every MapItem in the batch has been added or removed, and
+	 * after the camera has moved, if it was asked to
+	 */
+	void mapItemBatchFinished();
+}
@@ -0,0 +1,444 @@
+package sofia.maps;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * A quadtree over the positions of MapItems, for finding the MapItems in an
+ * area without looking at every one. Leaves split in four once they hold too
+ * many MapItems and merge back once their parent holds few enough, and each
+ * MapItem remembers its leaf, so moving or removing one only touches a short
+ * path of the tree. MapItems are keyed by identity.
+ */
+class MapItemTree {
+
+	// Constants
+	private static final int LEAF_CAPACITY = 16;
+	private static final int MAX_DEPTH = 24;
+	private static final double EARTH_RADIUS = 6371008.8;
+
+	// Fields
+	private final Node root = new Node(null, -90, -180, 90, 180, 0);
+	private final IdentityHashMap<MapItem, Node> leaves = new IdentityHashMap<MapItem, Node>();
+
+	/**
+	 * @return the number of MapItems in the tree
+	 */
+	int size() {
+		return leaves.size();
+	}
+
+	/**
+	 * @param item
+	 * @return whether the MapItem is in the tree
+	 */
+	boolean contains(MapItem item) {
+		return leaves.containsKey(item);
+	}
+
+	/**
+	 * Adds a MapItem at its current position, or moves it there if it is
+	 * already in the tree
+	 *
+	 * @param item
+	 *            a MapItem with a position
+	 */
+	void put(MapItem item) {
+		LatLng position = item.getPosition();
+		double lat = position.latitude;
+		double lng = wrap(position.longitude);
+		Node leaf = leaves.get(item);
+		if (leaf != null) {
+			if (leaf.contains(lat, lng)) {
+				leaf.move(item, lat, lng);
+				return;
+			}
+			remove(item);
+		}
+		insert(root, item, lat, lng);
+	}
+
+	/**
+	 * Removes a MapItem
+	 *
+	 * @param item
+	 * @return whether it was in the tree
+	 */
+	boolean remove(MapItem item) {
+		Node leaf = leaves.remove(item);
+		if (leaf == null) {
+			return false;
+		}
+		leaf.removeItem(item);
+		Node node = leaf;
+		while (node != null) {
+			node.count--;
+			node = node.parent;
+		}
+		// Merge the highest ancestor that has become small enough
+		Node merge = null;
+		for (node = leaf.parent; node != null; node = node.parent) {
+			if (node.count <= LEAF_CAPACITY / 2) {
+				merge = node;
+			}
+		}
+		if (merge != null) {
+			merge.collapse(leaves);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes every MapItem
+	 */
+	void clear() {
+		leaves.clear();
+		root.children = null;
+		root.items = null;
+		root.size = 0;
+		root.count = 0;
+	}
+
+	/**
+	 * Finds the MapItems inside a box. A box whose west edge is east of its
+	 * east edge crosses the 180th meridian.
+	 *
+	 * @param south
+	 * @param west
+	 * @param north
+	 * @param east
+	 * @param out
+	 *            the collection the MapItems are added to
+	 */
+	void findIn(double south, double west, double north, double east,
+			Collection<MapItem> out) {
+		west = wrap(west);
+		east = wrap(east);
+		if (west > east) {
+			findIn(root, south, west, north, 180, out);
+			findIn(root, south, -180, north, east, out);
+		} else {
+			findIn(root, south, west, north, east, out);
+		}
+	}
+
+	/**
+	 * Finds the MapItems within a distance of a point
+	 *
+	 * @param lat
+	 * @param lng
+	 * @param meters
+	 * @param out
+	 *            the collection the MapItems are added to
+	 */
+	void findWithin(double lat, double lng, double meters,
+			Collection<MapItem> out) {
+		findWithin(root, lat, wrap(lng), meters, out);
+	}
+
+	/**
+	 * Finds the MapItems closest to a point
+	 *
+	 * @param lat
+	 * @param lng
+	 * @param count
+	 *            the most MapItems to find
+	 * @return up to count MapItems, closest first
+	 */
+	List<MapItem> findNearest(double lat, double lng, int count) {
+		lng = wrap(lng);
+		ArrayList<MapItem> nearest = new ArrayList<MapItem>(Math.min(count,
+				size()));
+		if (count <= 0) {
+			return nearest;
+		}
+		// Nodes are queued by the distance to their closest possible point,
+		// and MapItems by their actual distance, so whatever is polled first
+		// is closer than anything still queued
+		PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+		queue.add(new Entry(root, null, 0));
+		while (!queue.isEmpty() && nearest.size() < count) {
+			Entry entry = queue.poll();
+			if (entry.item != null) {
+				nearest.add(entry.item);
+				continue;
+			}
+			Node node = entry.node;
+			if (node.children != null) {
+				for (Node child : node.children) {
+					if (child.count > 0) {
+						queue.add(new Entry(child, null, child.minDistance(
+								lat, lng)));
+					}
+				}
+			} else {
+				for (int i = 0; i < node.size; i++) {
+					queue.add(new Entry(null, node.items[i], distance(lat,
+							lng, node.lats[i], node.lngs[i])));
+				}
+			}
+		}
+		return nearest;
+	}
+
+	private void insert(Node node, MapItem item, double lat, double lng) {
+		while (true) {
+			node.count++;
+			if (node.children == null) {
+				if (node.size < LEAF_CAPACITY || node.depth == MAX_DEPTH) {
+					node.addItem(item, lat, lng);
+					leaves.put(item, node);
+					return;
+				}
+				node.split(leaves);
+			}
+			node = node.childFor(lat, lng);
+		}
+	}
+
+	private static void findIn(Node node, double south, double west,
+			double north, double east, Collection<MapItem> out) {
+		if (node.count == 0 || node.south > north || node.north < south
+				|| node.west > east || node.east < west) {
+			return;
+		}
+		if (node.children != null) {
+			for (Node child : node.children) {
+				findIn(child, south, west, north, east, out);
+			}
+			return;
+		}
+		for (int i = 0; i < node.size; i++) {
+			if (node.lats[i] >= south && node.lats[i] <= north
+					&& node.lngs[i] >= west && node.lngs[i] <= east) {
+				out.add(node.items[i]);
+			}
+		}
+	}
+
+	private static void findWithin(Node node, double lat, double lng,
+			double meters, Collection<MapItem> out) {
+		if (node.count == 0 || node.minDistance(lat, lng) > meters) {
+			return;
+		}
+		if (node.children != null) {
+			for (Node child : node.children) {
+				findWithin(child, lat, lng, meters, out);
+			}
+			return;
+		}
+		for (int i = 0; i < node.size; i++) {
+			if (distance(lat, lng, node.lats[i], node.lngs[i]) <= meters) {
+				out.add(node.items[i]);
+			}
+		}
+	}
+
+	/**
+	 * @return lng moved into [-180, 180]
+	 */
+	private static double wrap(double lng) {
+		if (lng >= -180 && lng <= 180) {
+			return lng;
+		}
+		lng = ((lng + 180) % 360 + 360) % 360 - 180;
+		return lng;
+	}
+
+	/**
+	 * Great-circle distance in meters, using the haversine formula
+	 */
+	private static double distance(double lat1, double lng1, double lat2,
+			double lng2) {
+		double dLat = Math.toRadians(lat2 - lat1);
+		double dLng = Math.toRadians(lng2 - lng1);
+		double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+				+ Math.cos(Math.toRadians(lat1))
+				* Math.cos(Math.toRadians(lat2)) * Math.sin(dLng / 2)
+				* Math.sin(dLng / 2);
+		return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+	/**
+	 * A box of latitudes and longitudes; a leaf if it has no children
+	 */
+	private static class Node {
+		final Node parent;
+		final double south, west, north, east;
+		final int depth;
+		Node[] children;
+		// The MapItems in a leaf
+		MapItem[] items;
+		double[] lats, lngs;
+		int size;
+		// The number of MapItems in this subtree
+		int count;
+
+		Node(Node parent, double south, double west, double north,
+				double east, int depth) {
+			this.parent = parent;
+			this.south = south;
+			this.west = west;
+			this.north = north;
+			this.east = east;
+			this.depth = depth;
+		}
+
+		boolean contains(double lat, double lng) {
+			return lat >= south && lat <= north && lng >= west && lng <= east;
+		}
+
+		Node childFor(double lat, double lng) {
+			double midLat = (south + north) / 2;
+			double midLng = (west + east) / 2;
+			return children[(lat >= midLat ? 2 : 0) + (lng >= midLng ? 1 : 0)];
+		}
+
+		void addItem(MapItem item, double lat, double lng) {
+			if (items == null) {
+				items = new MapItem[LEAF_CAPACITY];
+				lats = new double[LEAF_CAPACITY];
+				lngs = new double[LEAF_CAPACITY];
+			} else if (size == items.length) {
+				// Only leaves at the maximum depth grow past their capacity
+				MapItem[] largerItems = new MapItem[size * 2];
+				double[] largerLats = new double[size * 2];
+				double[] largerLngs = new double[size * 2];
+				System.arraycopy(items, 0, largerItems, 0, size);
+				System.arraycopy(lats, 0, largerLats, 0, size);
+				System.arraycopy(lngs, 0, largerLngs, 0, size);
+				items = largerItems;
+				lats = largerLats;
+				lngs = largerLngs;
+			}
+			items[size] = item;
+			lats[size] = lat;
+			lngs[size] = lng;
+			size++;
+		}
+
+		void move(MapItem item, double lat, double lng) {
+			for (int i = 0; i < size; i++) {
+				if (items[i] == item) {
+					lats[i] = lat;
+					lngs[i] = lng;
+					return;
+				}
+			}
+		}
+
+		void removeItem(MapItem item) {
+			for (int i = 0; i < size; i++) {
+				if (items[i] == item) {
+					size--;
+					items[i] = items[size];
+					lats[i] = lats[size];
+					lngs[i] = lngs[size];
+					items[size] = null;
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Turns this leaf into four children and moves its MapItems into
+		 * them
+		 */
+		void split(IdentityHashMap<MapItem, Node> leaves) {
+			double midLat = (south + north) / 2;
+			double midLng = (west + east) / 2;
+			children = new Node[] {
+					new Node(this, south, west, midLat, midLng, depth + 1),
+					new Node(this, south, midLng, midLat, east, depth + 1),
+					new Node(this, midLat, west, north, midLng, depth + 1),
+					new Node(this, midLat, midLng, north, east, depth + 1) };
+			for (int i = 0; i < size; i++) {
+				Node child = childFor(lats[i], lngs[i]);
+				child.addItem(items[i], lats[i], lngs[i]);
+				child.count++;
+				leaves.put(items[i], child);
+			}
+			items = null;
+			lats = null;
+			lngs = null;
+			size = 0;
+		}
+
+		/**
+		 * Turns this subtree back into a single leaf
+		 */
+		void collapse(IdentityHashMap<MapItem, Node> leaves) {
+			if (children == null) {
+				return;
+			}
+			ArrayList<Node> pending = new ArrayList<Node>();
+			for (Node child : children) {
+				pending.add(child);
+			}
+			children = null;
+			while (!pending.isEmpty()) {
+				Node node = pending.remove(pending.size() - 1);
+				if (node.children != null) {
+					for (Node child : node.children) {
+						pending.add(child);
+					}
+					continue;
+				}
+				for (int i = 0; i < node.size; i++) {
+					addItem(node.items[i], node.lats[i], node.lngs[i]);
+					leaves.put(node.items[i], this);
+				}
+			}
+		}
+
+		/**
+		 * @return a distance in meters that no point in this box is closer
+		 *         than
+		 */
+		double minDistance(double lat, double lng) {
+			if (lng >= west && lng <= east) {
+				if (lat < south) {
+					return EARTH_RADIUS * Math.toRadians(south - lat);
+				} else if (lat > north) {
+					return EARTH_RADIUS * Math.toRadians(lat - north);
+				}
+				return 0;
+			}
+			// The closest point is on the nearer of the box's meridian
+			// edges, at the latitude closest to the point on that meridian
+			double toWest = (west - lng + 360) % 360;
+			double toEast = (lng - east + 360) % 360;
+			double edge = toWest < toEast ? west : east;
+			double phi = Math.toRadians(lat);
+			double theta = Math.atan2(Math.sin(phi), Math.cos(phi)
+					* Math.cos(Math.toRadians(edge - lng)));
+			double closest = Math.max(south, Math.min(north, Math.max(-90,
+					Math.min(90, Math.toDegrees(theta)))));
+			return distance(lat, lng, closest, edge);
+		}
+	}
+
+	/**
+	 * A Node or MapItem queued by a nearest neighbor search
+	 */
+	private static class Entry implements Comparable<Entry> {
+		final Node node;
+		final MapItem item;
+		final double distance;
+
+		Entry(Node node, MapItem item, double distance) {
+			this.node = node;
+			this.item = item;
+			this.distance = distance;
+		}
+
+		public int compareTo(Entry other) {
+			return Double.compare(distance, other.distance);
+		}
+	}
+}
@@ -1,16 +1,35 @@
 package sofia.maps;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map.Entry;
-
-import org.w3c.dom.Document;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import sofia.app.Screen;
 import sofia.app.internal.PersistenceManager;
 import sofia.app.internal.ScreenMixin;
+import sofia.gps.LocationFilter;
+import sofia.gps.LocationRequestListener;
 import sofia.gps.LocationTracker;
+import sofia.gps.LocationValidator;
+import sofia.gps.DirectionsTransport;
+import sofia.gps.DirectionsProvider;
 import sofia.gps.MapDirection;
+import sofia.gps.OfflineDirectionsProvider;
+import sofia.gps.RouteCache;
+import sofia.gps.RoutePoints;
+import sofia.gps.TrackRecorder;
 import sofia.internal.events.EventDispatcher;
 import android.app.Activity;
 import android.content.Intent;
@@ -18,6 +37,8 @@ import android.content.IntentSender;
 import android.location.Location;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -29,12 +50,16 @@ import com.google.android.gms.location.LocationClient;
 import com.google.android.gms.location.LocationListener;
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.GoogleMap.OnCameraChangeListener;
 import com.google.android.gms.maps.GoogleMap.OnInfoWindowClickListener;
 import com.google.android.gms.maps.GoogleMap.OnMapLongClickListener;
 import com.google.android.gms.maps.GoogleMap.OnMarkerClickListener;
 import com.google.android.gms.maps.GoogleMap.OnMarkerDragListener;
 import com.google.android.gms.maps.MapFragment;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.Polyline;
 import com.google.android.gms.maps.model.PolylineOptions;
@@ -62,11 +87,80 @@ public class MapScreen extends Activity implements
 	// ~ Instance/static variables .............................................
 	private ScreenMixin mixin;
 
-	// Keep track of the mapping between Markers and MapItems for MapItem
-	// removal
-	private HashMap<Marker, MapItem> mapItems = null;
+	// Keep track of the mapping between Markers and MapItems, in both
+	// directions, for event dispatch and MapItem removal
+	private MarkerIndex mapItems = null;
+	// The positions of the MapItems added to this screen, including those
+	// hidden inside clusters
+	private MapItemTree mapItemTree = null;
+	// The MapItems passed to setMapItems, by id
+	private HashMap<String, MapItem> itemsById = null;
+	// Hidden Markers kept for reuse by MapItems that are shown later
+	private MarkerPool markerPool = null;
+	// The MapItems added with addMapItem and addMapItems, by identity,
+	// whether or not they have a Marker
+	private Set<MapItem> addedItems = null;
+	// Whether addedItems only have Markers near the visible region
+	private boolean markerCulling = false;
+	// How far past each edge of the visible region Markers are kept, as a
+	// fraction of the region's size
+	private float cullingMargin = 0.5f;
+	// The area addedItems have Markers in while culling, or null if it is
+	// not known yet
+	private LatLngBounds cullBounds = null;
 	// Keep track of the mapping between Routes and Polylines for Route removal
 	private HashMap<Route, Polyline> routes = null;
+	// Levels of detail of the Routes drawn with directions
+	private HashMap<Route, RouteDetail> routeDetails = null;
+	// The camera zoom, readable from background threads
+	private volatile float cameraZoom = RouteDetail.MIN_ZOOM;
+	// Directions requests that have not finished yet, cancelled in onStop
+	private HashMap<Route, GetDirectionsTask> pendingRoutes = null;
+	// Batches started by drawRoutes that have not finished yet
+	private ArrayList<RouteBatch> routeBatches = null;
+	// Batches started by addMapItems and removeMapItems, applied in order
+	private ArrayList<MapItemBatch> mapItemBatches = null;
+	// How long a single pass of a MapItem batch may spend adding or removing
+	// Markers
+	private long mapItemBatchBudget = 8;
+	// The clusters of the MapItems passed to clusterMapItems, or null
+	private ClusterHierarchy clusters = null;
+	// Building clusters in the background, or null
+	private BuildClustersTask clusterTask = null;
+	// The MapItems passed to clusterMapItems
+	private List<MapItem> clusteredItems = null;
+	// The MapItems and MapClusters shown for clusters, by identity
+	private Set<MapItem> shownClusterEntries = null;
+	// The zoom level shownClusterEntries are for, or -1
+	private int shownClusterLevel = -1;
+	// The width of a cluster grid cell, in density-independent pixels
+	private int clusterGridSize = 60;
+	// Shared icons for MapItems and clusters
+	private IconCache iconCache = null;
+	// Moves MapItems smoothly to new positions
+	private MarkerAnimator markerAnimator = null;
+	// The LocationTracker passed to getLocationUpdates, or null
+	private LocationTracker locationTracker = null;
+	// Fixes buffered while the LocationTracker batches them
+	private ArrayList<Location> locationBatch = null;
+	// Hands the buffered fixes to locationDidChange
+	private final Runnable locationBatchFlusher = new Runnable() {
+		public void run() {
+			flushLocationBatch();
+		}
+	};
+	// Asks for updates again when the LocationTracker changes its request
+	private final LocationRequestListener locationRequestListener = new LocationRequestListener() {
+		public void locationRequestChanged(LocationTracker tracker) {
+			if (tracker == locationTracker && mLocationClient != null
+					&& mLocationClient.isConnected()) {
+				mLocationClient.requestLocationUpdates(
+						tracker.getLocationRequest(), MapScreen.this);
+			}
+		}
+	};
+	// Used to run work on the main thread
+	private Handler handler = null;
 	private GoogleMap myMap = null;
 
 	// EventDispatchers that are overriden by user to define custom behavior
@@ -90,11 +184,21 @@ public class MapScreen extends Activity implements
 	public static final String MODE_WALKING = "walking";
 	public static final String MODE_DRIVING = "driving";
 
-	// What mode is selected for MapDirection
-	private static String mode = "";
+	// Routes fetched by drawRoute, shared by every MapScreen
+	private static RouteCache routeCache = null;
+	// Whether setRouteCache was called, so that a null routeCache means
+	// caching was turned off rather than not yet set up
+	private static boolean routeCacheSet = false;
+
+	// Finds the directions for drawRoute; null to ask Google's Directions
+	// service through routeCache
+	private static DirectionsProvider directionsProvider = null;
 
 	private final static int CONNECTION_FAILURE_RESOLUTION_REQUEST = 9000;
 
+	// The space, in pixels, left around the MapItems shown by addMapItems
+	private final static int BATCH_CAMERA_PADDING = 64;
+
 	private LocationClient mLocationClient;
 
 	// ~ Constructors ..........................................................
@@ -152,8 +256,27 @@ public class MapScreen extends Activity implements
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 
-		mapItems = new HashMap<Marker, MapItem>();
+		handler = new Handler();
+		mapItemTree = new MapItemTree();
+		mapItems = new MarkerIndex(new MarkerUpdater(handler, mapItemTree));
+		markerPool = new MarkerPool(200);
+		markerAnimator = new MarkerAnimator(handler);
+		locationBatch = new ArrayList<Location>();
+		itemsById = new HashMap<String, MapItem>();
+		addedItems = Collections
+				.newSetFromMap(new IdentityHashMap<MapItem, Boolean>());
 		routes = new HashMap<Route, Polyline>();
+		routeDetails = new HashMap<Route, RouteDetail>();
+		pendingRoutes = new HashMap<Route, GetDirectionsTask>();
+		routeBatches = new ArrayList<RouteBatch>();
+		mapItemBatches = new ArrayList<MapItemBatch>();
+		shownClusterEntries = Collections
+				.newSetFromMap(new IdentityHashMap<MapItem, Boolean>());
+		iconCache = new IconCache(getResources(), (int) Math.min(Runtime
+				.getRuntime().maxMemory() / 32, Integer.MAX_VALUE));
+		if (routeCache == null && !routeCacheSet) {
+			routeCache = new RouteCache(new File(getCacheDir(), "routes"));
+		}
 
 		// Create the Google Maps API V2 LocationClient
 		mLocationClient = new LocationClient(this, this, this);
@@ -176,15 +299,21 @@ public class MapScreen extends Activity implements
 
 	/**
 	 * Called when a Marker is clicked on </br></br> Dispatches to
-	 * onMapItemClicked
+	 * onMapItemClicked. If the Marker shows a MapCluster, the camera then
+	 * zooms in until the cluster splits apart.
 	 * 
 	 * @param marker
 	 *            the Marker that was clicked on
 	 * @return
 	 */
 	protected boolean handleClick(Marker marker) {
-		MapItem foundItem = mapItems.get(marker);
-		return mapItemWasClicked.dispatch(this, foundItem);
+		MapItem foundItem = mapItems.getItem(marker);
+		boolean handled = mapItemWasClicked.dispatch(this, foundItem);
+		if (foundItem instanceof MapCluster) {
+			expandCluster((MapCluster) foundItem);
+			return true;
+		}
+		return handled;
 	}
 
 	/**
@@ -195,7 +324,7 @@ public class MapScreen extends Activity implements
 	 *            the Marker that had its InfoWindow clicked on
 	 */
 	protected void handleDetailClick(Marker marker) {
-		MapItem foundItem = mapItems.get(marker);
+		MapItem foundItem = mapItems.getItem(marker);
 		mapItemDetailWasClicked.dispatch(this, foundItem);
 	}
 
@@ -206,7 +335,7 @@ public class MapScreen extends Activity implements
 	 *            the Marker that was dragged
 	 */
 	protected void handleDrag(Marker marker) {
-		MapItem foundItem = mapItems.get(marker);
+		MapItem foundItem = mapItems.getItem(marker);
 		mapItemWasDragged.dispatch(this, foundItem);
 	}
 
@@ -218,7 +347,13 @@ public class MapScreen extends Activity implements
 	 *            the Marker that is no longer being dragged
 	 */
 	protected void handleDragEnd(Marker marker) {
-		MapItem foundItem = mapItems.get(marker);
+		MapItem foundItem = mapItems.getItem(marker);
+		if (foundItem != null) {
+			foundItem.setPosition(marker.getPosition());
+			if (mapItemTree.contains(foundItem)) {
+				mapItemTree.put(foundItem);
+			}
+		}
 		mapItemWasDraggedEnd.dispatch(this, foundItem);
 	}
 
@@ -230,7 +365,7 @@ public class MapScreen extends Activity implements
 	 *            the Marker that is beginning being dragged
 	 */
 	protected void handleDragStart(Marker marker) {
-		MapItem foundItem = mapItems.get(marker);
+		MapItem foundItem = mapItems.getItem(marker);
 		mapItemWasDraggedStart.dispatch(this, foundItem);
 	}
 
@@ -246,6 +381,27 @@ public class MapScreen extends Activity implements
 		mapWasLongClicked.dispatch(this, point);
 	}
 
+	/**
+	 * Called when the camera has finished moving </br></br> Shows the
+	 * clusters for the new zoom level, updates which MapItems have Markers
+	 * if Markers are culled, and switches the Routes drawn with directions to
+	 * the level of detail that matches the new zoom level
+	 * 
+	 * @param position
+	 *            the new position of the camera
+	 */
+	protected void handleCameraChange(CameraPosition position) {
+		cameraZoom = position.zoom;
+		updateClusters();
+		updateCulling();
+		for (Entry<Route, RouteDetail> e : routeDetails.entrySet()) {
+			Polyline polyLine = routes.get(e.getKey());
+			if (polyLine != null) {
+				updateRouteDetail(e.getValue(), polyLine);
+			}
+		}
+	}
+
 	/**
 	 * Add a MapItem to the map
 	 * 
@@ -257,10 +413,12 @@ public class MapScreen extends Activity implements
 	 */
 	protected boolean addMapItem(MapItem mapItem, boolean showDetails) {
 		if (mapItem != null && myMap != null) {
-			Marker marker = myMap.addMarker(mapItem.getMapItem());
-			mapItems.put(marker, mapItem);
+			addedItems.add(mapItem);
+			mapItemTree.put(mapItem);
 			if (showDetails) {
-				marker.showInfoWindow();
+				showMapItem(mapItem).showInfoWindow();
+			} else if (isInCullBounds(mapItem)) {
+				showMapItem(mapItem);
 			}
 			return true;
 		} else {
@@ -287,8 +445,9 @@ public class MapScreen extends Activity implements
 	protected boolean addMapItem(MapItem mapItem, boolean showDetails,
 			boolean zoomToPoint, float zoomLevel) {
 		if (mapItem != null && myMap != null) {
-			Marker marker = myMap.addMarker(mapItem.getMapItem());
-			mapItems.put(marker, mapItem);
+			Marker marker = showMapItem(mapItem);
+			addedItems.add(mapItem);
+			mapItemTree.put(mapItem);
 			if (showDetails) {
 				marker.showInfoWindow();
 			}
@@ -300,47 +459,692 @@ public class MapScreen extends Activity implements
 		}
 	}
 
+	/**
+	 * Shows the Marker for a MapItem on the map, replacing the MapItem's
+	 * previous Marker if it was already on the map. A hidden Marker from the
+	 * pool is reused if there is one.
+	 * 
+	 * @param mapItem
+	 * @return the new Marker
+	 */
+	private Marker showMapItem(MapItem mapItem) {
+		Marker replaced = mapItems.remove(mapItem);
+		if (replaced != null) {
+			markerPool.recycle(replaced);
+		}
+		Marker marker = markerPool.obtain(myMap, mapItem.getMapItem());
+		mapItems.put(mapItem, marker);
+		return marker;
+	}
+
+	/**
+	 * Return the Marker that shows a MapItem
+	 * 
+	 * @param mapItem
+	 * @return the Marker, or null if the MapItem is not on the map
+	 */
+	protected Marker getMarker(MapItem mapItem) {
+		return mapItems.getMarker(mapItem);
+	}
+
+	/**
+	 * Return the most hidden Markers kept for reuse
+	 * 
+	 * @return the capacity of the Marker pool
+	 */
+	protected int getMarkerPoolCapacity() {
+		return markerPool.getCapacity();
+	}
+
+	/**
+	 * Set the most Markers that are hidden and kept for reuse when their
+	 * MapItems are removed, rather than removed from the map. Each one costs
+	 * about as much memory as a visible Marker.
+	 * 
+	 * @param capacity
+	 *            the capacity of the Marker pool, or 0 to always remove
+	 *            Markers; the default is 200
+	 */
+	protected void setMarkerPoolCapacity(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException(
+					"capacity must not be negative");
+		}
+		markerPool.setCapacity(capacity);
+	}
+
+	/**
+	 * Return how many Markers have been shown by reusing a hidden one
+	 * 
+	 * @return the number of Marker pool hits
+	 */
+	protected long getMarkerPoolHitCount() {
+		return markerPool.getHitCount();
+	}
+
+	/**
+	 * Return how many Markers had to be added to the map because no hidden
+	 * one was available
+	 * 
+	 * @return the number of Marker pool misses
+	 */
+	protected long getMarkerPoolMissCount() {
+		return markerPool.getMissCount();
+	}
+
 	/**
 	 * Takes a variable number of MapItem objects and removes them from the map
 	 * 
-	 * @return
+	 * @return whether every MapItem was on the map, or had been added but had
+	 *         no Marker because Markers are culled
 	 */
 	protected boolean removeMarker(MapItem... myItems) {
-		try {
-			for (MapItem myItem : myItems) {
-				if (mapItems.containsValue(myItem)) {
-					for (Entry<Marker, MapItem> e : mapItems.entrySet()) {
-						if (e.getValue().equals(myItem)) {
-							Marker key = e.getKey();
-							key.remove();
-							mapItems.remove(key);
-						}
-					}
-				}
+		boolean removedAll = true;
+		for (MapItem myItem : myItems) {
+			forgetId(myItem);
+			boolean added = addedItems.remove(myItem);
+			mapItemTree.remove(myItem);
+			Marker marker = mapItems.remove(myItem);
+			if (marker != null) {
+				markerPool.recycle(marker);
+			} else if (!added) {
+				removedAll = false;
 			}
-		} catch (Exception e) {
-			return false;
 		}
-		return true;
+		return removedAll;
 	}
 
 	/**
-	 * Remove all of the MapItem objects that are currently on the map
+	 * Remove all of the MapItem objects that are currently on the map. Up to
+	 * {@link #getMarkerPoolCapacity()} of their Markers are hidden and kept,
+	 * so that adding MapItems again right after, as when a layer is
+	 * refreshed, mostly updates existing Markers instead of creating new
+	 * ones.
 	 * 
 	 * @return
 	 */
 	protected boolean removeAllMarkers() {
-		try {
-			for (Entry<Marker, MapItem> e : mapItems.entrySet()) {
-				e.getKey().remove();
-			}
-			mapItems = new HashMap<Marker, MapItem>();
-		} catch (Exception e) {
-			return false;
+		for (Marker marker : mapItems.markers()) {
+			markerPool.recycle(marker);
 		}
+		mapItems.clear();
+		mapItemTree.clear();
+		addedItems.clear();
+		itemsById.clear();
 		return true;
 	}
 
+	/**
+	 * Moves a MapItem and its Marker, if it has one, and keeps the spatial
+	 * queries up to date
+	 * 
+	 * @param mapItem
+	 * @param position
+	 *            the new position
+	 */
+	protected void moveMapItem(MapItem mapItem, LatLng position) {
+		mapItem.setPosition(position);
+		Marker marker = mapItems.getMarker(mapItem);
+		if (marker != null) {
+			marker.setPosition(position);
+		}
+		if (mapItemTree.contains(mapItem)) {
+			mapItemTree.put(mapItem);
+		}
+	}
+
+	/**
+	 * Finds the MapItems added to this screen that are inside an area,
+	 * including those hidden inside clusters. This uses a spatial index, so
+	 * it does not look at every MapItem.
+	 * 
+	 * @param bounds
+	 * @return the MapItems inside bounds, in no particular order
+	 */
+	protected List<MapItem> getMapItemsIn(LatLngBounds bounds) {
+		ArrayList<MapItem> found = new ArrayList<MapItem>();
+		mapItemTree.findIn(bounds.southwest.latitude,
+				bounds.southwest.longitude, bounds.northeast.latitude,
+				bounds.northeast.longitude, found);
+		return found;
+	}
+
+	/**
+	 * Finds the MapItems added to this screen that are within a distance of
+	 * a point, including those hidden inside clusters
+	 * 
+	 * @param center
+	 * @param meters
+	 *            the greatest great-circle distance from center
+	 * @return the MapItems within that distance, in no particular order
+	 */
+	protected List<MapItem> getMapItemsWithin(LatLng center, double meters) {
+		ArrayList<MapItem> found = new ArrayList<MapItem>();
+		mapItemTree.findWithin(center.latitude, center.longitude, meters,
+				found);
+		return found;
+	}
+
+	/**
+	 * Finds the MapItems added to this screen that are closest to a point,
+	 * including those hidden inside clusters
+	 * 
+	 * @param point
+	 * @param count
+	 *            the most MapItems to return
+	 * @return up to count MapItems, closest first
+	 */
+	protected List<MapItem> getNearestMapItems(LatLng point, int count) {
+		return mapItemTree.findNearest(point.latitude, point.longitude, count);
+	}
+
+	/**
+	 * Adds many MapItems to the map without blocking the main thread for
+	 * long. The Markers are added over several passes, each of which runs for
+	 * at most {@link #getMapItemBatchBudget()} milliseconds so that frames can
+	 * be drawn in between. Batches, including those started by
+	 * {@link #removeMapItems(Collection, MapItemBatchListener)}, are applied
+	 * in the order they were started.
+	 * 
+	 * @param items
+	 *            the MapItems to add
+	 * @param zoomToItems
+	 *            whether to move the camera to show every added MapItem once
+	 *            they have all been added
+	 * @param listener
+	 *            notified of progress and when the batch is finished, may be
+	 *            null
+	 */
+	protected void addMapItems(Collection<MapItem> items, boolean zoomToItems,
+			MapItemBatchListener listener) {
+		startMapItemBatch(new MapItemBatch(new ArrayList<MapItem>(items), true,
+				true, zoomToItems, listener));
+	}
+
+	/**
+	 * Removes many MapItems from the map without blocking the main thread for
+	 * long, in the same way as
+	 * {@link #addMapItems(Collection, boolean, MapItemBatchListener)}
+	 * 
+	 * @param items
+	 *            the MapItems to remove
+	 * @param listener
+	 *            notified of progress and when the batch is finished, may be
+	 *            null
+	 */
+	protected void removeMapItems(Collection<MapItem> items,
+			MapItemBatchListener listener) {
+		startMapItemBatch(new MapItemBatch(new ArrayList<MapItem>(items),
+				false, true, false, listener));
+	}
+
+	/**
+	 * Makes the MapItems shown by this method match a snapshot, such as one
+	 * received from a server. MapItems are matched to those passed last time
+	 * by their {@link MapItem#getId() id}: ids that are new are added, ids
+	 * that are gone are removed, and ids that remain keep their Marker, which
+	 * is updated in place with only the properties that changed. Passing the
+	 * same MapItem object again counts as unchanged, since changes made
+	 * through its setters already reach its Marker. The changes are applied
+	 * in frame-budgeted batches like
+	 * {@link #addMapItems(Collection, boolean, MapItemBatchListener)}, so
+	 * each call costs time in proportion to what changed rather than to the
+	 * size of the snapshot.
+	 * 
+	 * @param items
+	 *            every MapItem that should be shown, each with a unique id
+	 * @param listener
+	 *            notified of progress over the added and updated MapItems,
+	 *            and when every change has been applied; may be null
+	 * @throws IllegalArgumentException
+	 *             if a MapItem has no id, or two have the same id
+	 */
+	protected void setMapItems(Collection<MapItem> items,
+			MapItemBatchListener listener) {
+		HashMap<String, MapItem> desired = new HashMap<String, MapItem>();
+		for (MapItem item : items) {
+			if (item.getId() == null) {
+				throw new IllegalArgumentException("MapItem has no id");
+			}
+			if (desired.put(item.getId(), item) != null) {
+				throw new IllegalArgumentException("Duplicate MapItem id: "
+						+ item.getId());
+			}
+		}
+
+		ArrayList<MapItem> removed = new ArrayList<MapItem>();
+		for (MapItem current : itemsById.values()) {
+			if (!desired.containsKey(current.getId())) {
+				removed.add(current);
+			}
+		}
+		ArrayList<MapItem> changed = new ArrayList<MapItem>();
+		ArrayList<MapItem> previous = new ArrayList<MapItem>();
+		for (MapItem item : desired.values()) {
+			MapItem current = itemsById.get(item.getId());
+			if (current != item) {
+				changed.add(item);
+				previous.add(current);
+			}
+		}
+		itemsById = desired;
+
+		if (!removed.isEmpty()) {
+			startMapItemBatch(new MapItemBatch(removed, false, true, false,
+					null));
+		}
+		startMapItemBatch(new MapItemBatch(changed, previous, listener));
+	}
+
+	/**
+	 * Moves a Marker from one MapItem to another that replaces it, updating
+	 * only the properties that differ
+	 * 
+	 * @param previous
+	 *            the MapItem being replaced
+	 * @param item
+	 *            the MapItem that replaces it
+	 */
+	private void replaceMapItem(MapItem previous, MapItem item) {
+		// The Marker is compared with previous below, so first give it any
+		// changes to previous still queued; unbinding would drop them
+		previous.applyChanges();
+		Marker marker = mapItems.remove(previous);
+		addedItems.remove(previous);
+		mapItemTree.remove(previous);
+		addedItems.add(item);
+		mapItemTree.put(item);
+		if (marker != null) {
+			MarkerPool.update(marker, previous.getMapItem(), item.getMapItem());
+			mapItems.put(item, marker);
+		} else if (isInCullBounds(item)) {
+			showMapItem(item);
+		}
+	}
+
+	/**
+	 * Stops matching a MapItem to later calls to setMapItems
+	 * 
+	 * @param item
+	 */
+	private void forgetId(MapItem item) {
+		if (item != null && item.getId() != null
+				&& itemsById.get(item.getId()) == item) {
+			itemsById.remove(item.getId());
+		}
+	}
+
+	/**
+	 * Cancels every batch started by addMapItems or removeMapItems that has
+	 * not finished yet. MapItems already added or removed stay that way.
+	 */
+	protected void cancelMapItemBatches() {
+		mapItemBatches.clear();
+		handler.removeCallbacks(mapItemBatchRunner);
+	}
+
+	/**
+	 * Return how long a single pass of a MapItem batch may spend adding or
+	 * removing Markers
+	 * 
+	 * @return the budget in milliseconds
+	 */
+	protected long getMapItemBatchBudget() {
+		return mapItemBatchBudget;
+	}
+
+	/**
+	 * Set how long a single pass of a MapItem batch may spend adding or
+	 * removing Markers. Smaller budgets keep animations smoother but take
+	 * longer to finish the batch.
+	 * 
+	 * @param millis
+	 *            the budget in milliseconds, at least 1; the default is 8
+	 */
+	protected void setMapItemBatchBudget(long millis) {
+		mapItemBatchBudget = Math.max(1, millis);
+	}
+
+	/**
+	 * Queues a batch and schedules a pass if none is pending
+	 * 
+	 * @param batch
+	 */
+	private void startMapItemBatch(MapItemBatch batch) {
+		mapItemBatches.add(batch);
+		if (mapItemBatches.size() == 1) {
+			handler.post(mapItemBatchRunner);
+		}
+	}
+
+	// Applies the queued MapItem batches, one pass at a time
+	private final Runnable mapItemBatchRunner = new Runnable() {
+		public void run() {
+			long deadline = SystemClock.uptimeMillis() + mapItemBatchBudget;
+			while (!mapItemBatches.isEmpty()) {
+				MapItemBatch batch = mapItemBatches.get(0);
+				if (!batch.apply(deadline)) {
+					break;
+				}
+				mapItemBatches.remove(0);
+				batch.finish();
+				if (SystemClock.uptimeMillis() >= deadline) {
+					break;
+				}
+			}
+			if (!mapItemBatches.isEmpty()) {
+				handler.post(this);
+			}
+		}
+	};
+
+	/**
+	 * Turns Marker culling on or off. While it is on, the MapItems added with
+	 * addMapItem and addMapItems only have Markers while they are in or near
+	 * the visible region of the map; Markers are created and removed as the
+	 * camera settles. This keeps the number of Markers, and the memory the
+	 * map uses for them, bounded no matter how many MapItems are added.
+	 * Clicks and drags on the Markers that exist are dispatched as usual.
+	 * 
+	 * @param enabled
+	 *            whether to cull Markers; the default is false
+	 */
+	protected void setMarkerCulling(boolean enabled) {
+		if (enabled == markerCulling) {
+			return;
+		}
+		markerCulling = enabled;
+		cullBounds = null;
+		if (enabled) {
+			updateCulling();
+		} else {
+			ArrayList<MapItem> hidden = new ArrayList<MapItem>();
+			for (MapItem item : addedItems) {
+				if (mapItems.getMarker(item) == null) {
+					hidden.add(item);
+				}
+			}
+			startMapItemBatch(new MapItemBatch(hidden, true, false, false,
+					null));
+		}
+	}
+
+	/**
+	 * Return whether Markers are culled
+	 * 
+	 * @return whether only MapItems near the visible region have Markers
+	 */
+	protected boolean isMarkerCulling() {
+		return markerCulling;
+	}
+
+	/**
+	 * Return how far past the visible region MapItems keep their Markers
+	 * while Markers are culled
+	 * 
+	 * @return the margin as a fraction of the visible region's size
+	 */
+	protected float getCullingMargin() {
+		return cullingMargin;
+	}
+
+	/**
+	 * Set how far past the visible region MapItems keep their Markers while
+	 * Markers are culled. Larger margins mean fewer Markers pop in while
+	 * panning, at the cost of more Markers.
+	 * 
+	 * @param margin
+	 *            the margin past each edge as a fraction of the visible
+	 *            region's size; the default is 0.5
+	 */
+	protected void setCullingMargin(float margin) {
+		if (margin < 0) {
+			throw new IllegalArgumentException("margin must not be negative");
+		}
+		cullingMargin = margin;
+		updateCulling();
+	}
+
+	/**
+	 * @param item
+	 * @return whether an added MapItem should have a Marker
+	 */
+	private boolean isInCullBounds(MapItem item) {
+		return !markerCulling || cullBounds == null
+				|| cullBounds.contains(item.getPosition());
+	}
+
+	/**
+	 * Gives Markers to the added MapItems near the visible region, and takes
+	 * them from the rest, if Markers are culled
+	 */
+	private void updateCulling() {
+		if (!markerCulling || myMap == null
+				|| myMap.getProjection() == null) {
+			return;
+		}
+		LatLngBounds visible = myMap.getProjection().getVisibleRegion().latLngBounds;
+		double south = visible.southwest.latitude;
+		double north = visible.northeast.latitude;
+		double west = visible.southwest.longitude;
+		double east = visible.northeast.longitude;
+		double height = north - south;
+		double width = east >= west ? east - west : east + 360 - west;
+		south = Math.max(-90, south - height * cullingMargin);
+		north = Math.min(90, north + height * cullingMargin);
+		if (width * (1 + 2 * cullingMargin) >= 360) {
+			west = -180;
+			east = 180;
+		} else {
+			west = wrapLongitude(west - width * cullingMargin);
+			east = wrapLongitude(east + width * cullingMargin);
+		}
+		cullBounds = new LatLngBounds(new LatLng(south, west), new LatLng(
+				north, east));
+
+		ArrayList<MapItem> inBounds = new ArrayList<MapItem>();
+		mapItemTree.findIn(south, west, north, east, inBounds);
+		Set<MapItem> wanted = Collections
+				.newSetFromMap(new IdentityHashMap<MapItem, Boolean>());
+		ArrayList<MapItem> shown = new ArrayList<MapItem>();
+		for (MapItem item : inBounds) {
+			if (addedItems.contains(item)) {
+				wanted.add(item);
+				if (mapItems.getMarker(item) == null) {
+					shown.add(item);
+				}
+			}
+		}
+		ArrayList<MapItem> hidden = new ArrayList<MapItem>();
+		for (MapItem item : mapItems.items()) {
+			if (!wanted.contains(item) && addedItems.contains(item)) {
+				hidden.add(item);
+			}
+		}
+		if (!hidden.isEmpty()) {
+			startMapItemBatch(new MapItemBatch(hidden, false, false, false,
+					null));
+		}
+		if (!shown.isEmpty()) {
+			startMapItemBatch(new MapItemBatch(shown, true, false, false, null));
+		}
+	}
+
+	/**
+	 * @return lng moved into [-180, 180)
+	 */
+	private static double wrapLongitude(double lng) {
+		return ((lng + 180) % 360 + 360) % 360 - 180;
+	}
+
+	/**
+	 * Shows MapItems grouped into clusters, so that very many of them can be
+	 * on the map at once. At each zoom level, MapItems that are close together
+	 * on screen are shown as a single {@link MapCluster} labeled with their
+	 * number; zooming in splits clusters apart. The clusters for every zoom
+	 * level are computed once, in the background, and replace any MapItems
+	 * previously passed to this method.
+	 * 
+	 * @param items
+	 *            the MapItems to show; they must not be moved until they are
+	 *            shown
+	 */
+	protected void clusterMapItems(Collection<MapItem> items) {
+		if (clusterTask != null) {
+			clusterTask.cancel(false);
+		}
+		if (clusteredItems != null) {
+			for (MapItem item : clusteredItems) {
+				mapItemTree.remove(item);
+			}
+		}
+		clusteredItems = new ArrayList<MapItem>(items);
+		for (MapItem item : clusteredItems) {
+			if (item != null && item.getPosition() != null) {
+				mapItemTree.put(item);
+			}
+		}
+		clusterTask = new BuildClustersTask(clusteredItems, clusterGridSize);
+		clusterTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+	}
+
+	/**
+	 * Removes every MapItem and MapCluster shown by
+	 * {@link #clusterMapItems(Collection)}
+	 */
+	protected void removeClusteredMapItems() {
+		if (clusterTask != null) {
+			clusterTask.cancel(false);
+			clusterTask = null;
+		}
+		if (clusteredItems != null) {
+			for (MapItem item : clusteredItems) {
+				mapItemTree.remove(item);
+			}
+			clusteredItems = null;
+		}
+		clusters = null;
+		shownClusterLevel = -1;
+		startMapItemBatch(new MapItemBatch(new ArrayList<MapItem>(
+				shownClusterEntries), false, false, false, null));
+		shownClusterEntries.clear();
+	}
+
+	/**
+	 * Moves the camera in far enough that a cluster splits into its children
+	 * 
+	 * @param cluster
+	 */
+	protected void expandCluster(MapCluster cluster) {
+		if (myMap != null) {
+			myMap.animateCamera(CameraUpdateFactory.newLatLngZoom(
+					cluster.getPosition(), cluster.getExpansionZoom()));
+		}
+	}
+
+	/**
+	 * Return the width of the grid cells MapItems are clustered by
+	 * 
+	 * @return the width in density-independent pixels
+	 */
+	protected int getClusterGridSize() {
+		return clusterGridSize;
+	}
+
+	/**
+	 * Set the width of the grid cells MapItems are clustered by. Larger cells
+	 * make fewer, larger clusters. Takes effect the next time
+	 * {@link #clusterMapItems(Collection)} is called.
+	 * 
+	 * @param size
+	 *            the width in density-independent pixels; the default is 60
+	 */
+	protected void setClusterGridSize(int size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("size must be positive");
+		}
+		clusterGridSize = size;
+	}
+
+	/**
+	 * Shows the clusters for the current zoom level, if they are not already
+	 * shown. Only the entries that differ from the level shown before are
+	 * added or removed.
+	 */
+	private void updateClusters() {
+		if (clusters == null) {
+			return;
+		}
+		int level = ClusterHierarchy.levelFor(cameraZoom);
+		if (level == shownClusterLevel) {
+			return;
+		}
+		shownClusterLevel = level;
+
+		List<MapItem> entries = clusters.getLevel(level);
+		Set<MapItem> shown = Collections
+				.newSetFromMap(new IdentityHashMap<MapItem, Boolean>());
+		ArrayList<MapItem> added = new ArrayList<MapItem>();
+		for (MapItem entry : entries) {
+			shown.add(entry);
+			if (!shownClusterEntries.remove(entry)) {
+				if (entry instanceof MapCluster && entry.getIcon() == null) {
+					entry.setIcon(clusterIcon(((MapCluster) entry).getSize()));
+				}
+				added.add(entry);
+			}
+		}
+		// What is left was shown for the previous level only
+		startMapItemBatch(new MapItemBatch(new ArrayList<MapItem>(
+				shownClusterEntries), false, false, false, null));
+		startMapItemBatch(new MapItemBatch(added, true, false, false, null));
+		shownClusterEntries = shown;
+	}
+
+	/**
+	 * Returns the icon for a cluster of the given size. Large sizes are
+	 * rounded down, so that only a few icons are ever drawn.
+	 * 
+	 * @param size
+	 * @return the icon
+	 */
+	private BitmapDescriptor clusterIcon(int size) {
+		String label;
+		if (size < 10) {
+			label = Integer.toString(size);
+		} else {
+			int round = 10;
+			while (round * 10 <= size) {
+				round *= 10;
+			}
+			label = (size / round * round) + "+";
+		}
+		float density = getResources().getDisplayMetrics().density;
+		int diameter = (int) Math.ceil((label.length() > 3 ? 48 : 40) * density);
+		return iconCache.getLabeledIcon(label, 0xcc1565c0, diameter);
+	}
+
+	/**
+	 * Return the icons shared by the MapItems on this screen. Use it to get
+	 * icons for MapItems instead of creating a new BitmapDescriptor for each.
+	 * 
+	 * @return the IconCache of this screen
+	 */
+	protected IconCache getIconCache() {
+		return iconCache;
+	}
+
+	/**
+	 * Return the animator that moves MapItems on this screen smoothly to new
+	 * positions, for example animateTo(item, position, 1000) when a new
+	 * position arrives for a MapItem that moves. Animations stop in onStop.
+	 * 
+	 * @return the MarkerAnimator of this screen
+	 */
+	protected MarkerAnimator getMarkerAnimator() {
+		return markerAnimator;
+	}
+
 	/**
 	 * Adds a Route to the map as a straight line between the source and
 	 * destination of the Route
@@ -350,6 +1154,7 @@ public class MapScreen extends Activity implements
 	protected void drawRoute(Route route) {
 		Polyline polyLine = myMap.addPolyline(route.getMyRoute());
 		routes.put(route, polyLine);
+		routeDetails.remove(route);
 	}
 
 	/**
@@ -366,26 +1171,304 @@ public class MapScreen extends Activity implements
 	 */
 	protected void drawRoute(Route route, String modeOfTransport)
 			throws Exception {
-		ArrayList<LatLng> directionPoint = null;
-		if (MODE_WALKING.equals(modeOfTransport)) {
-			mode = MODE_WALKING;
-		} else if (MODE_DRIVING.equals(modeOfTransport)) {
-			mode = MODE_DRIVING;
-		} else {
+		drawRoute(route, modeOfTransport, false);
+	}
+
+	/**
+	 * Adds a Route to the map as an overlay on the roads and walkways that the
+	 * Route will follow, optionally using only the coarse overview of the
+	 * directions. An overview is much cheaper to decode and draw, which suits
+	 * previews; drawing the same Route again without overviewOnly upgrades it
+	 * to full detail.
+	 * 
+	 * @param route
+	 * @param modeOfTransport
+	 *            Either {@link MODE_DRIVING} or {@link MODE_WALKING}
+	 * @param overviewOnly
+	 *            whether to draw only the overview of the directions
+	 * @throws Exception
+	 *             if modeOfTransport is neither {@link MODE_DRIVING} nor
+	 *             {@link MODE_WALKING}
+	 */
+	protected void drawRoute(Route route, String modeOfTransport,
+			boolean overviewOnly) throws Exception {
+		// Not the transport's worker pool, where the fetch could queue behind
+		// a whole drawRoutes batch while the main thread waits for it
+		GetDirectionsTask task = startDirectionsTask(route, modeOfTransport,
+				overviewOnly, null, false, AsyncTask.THREAD_POOL_EXECUTOR);
+		FetchedRoute fetched = task.get();
+		pendingRoutes.remove(route);
+		if (fetched.options == null) {
+			throw new Exception("Unable to get directions for the Route");
+		}
+		showRoute(fetched);
+	}
+
+	/**
+	 * Adds a Route to the map as an overlay on the roads and walkways that the
+	 * Route will follow, without waiting for the directions to arrive. The
+	 * directions are fetched and decoded in the background, and only the
+	 * Polyline is added on the main thread. Requests still pending when the
+	 * screen stops are cancelled.
+	 * 
+	 * @param route
+	 * @param modeOfTransport
+	 *            Either {@link MODE_DRIVING} or {@link MODE_WALKING}
+	 * @param listener
+	 *            notified on the main thread when the Route has been drawn or
+	 *            could not be found; may be null
+	 * @throws Exception
+	 *             if modeOfTransport is neither {@link MODE_DRIVING} nor
+	 *             {@link MODE_WALKING}
+	 */
+	protected void drawRouteAsync(Route route, String modeOfTransport,
+			RouteListener listener) throws Exception {
+		drawRouteAsync(route, modeOfTransport, false, listener);
+	}
+
+	/**
+	 * Adds a Route to the map without waiting for the directions to arrive,
+	 * optionally using only the coarse overview of the directions. Drawing a
+	 * Route that is already on the map replaces its Polyline once the new one
+	 * has been added, so a preview drawn with overviewOnly can be upgraded to
+	 * full detail later by drawing it again without it.
+	 * 
+	 * @param route
+	 * @param modeOfTransport
+	 *            Either {@link MODE_DRIVING} or {@link MODE_WALKING}
+	 * @param overviewOnly
+	 *            whether to draw only the overview of the directions
+	 * @param listener
+	 *            notified on the main thread when the Route has been drawn or
+	 *            could not be found; may be null
+	 * @throws Exception
+	 *             if modeOfTransport is neither {@link MODE_DRIVING} nor
+	 *             {@link MODE_WALKING}
+	 */
+	protected void drawRouteAsync(Route route, String modeOfTransport,
+			boolean overviewOnly, RouteListener listener) throws Exception {
+		startDirectionsTask(route, modeOfTransport, overviewOnly, listener,
+				true, DirectionsTransport.getDefault().getExecutor());
+	}
+
+	/**
+	 * Takes a variable number of Route objects and cancels any of their
+	 * directions requests that have not finished yet
+	 * 
+	 * @param routes
+	 */
+	protected void cancelRoute(Route... routes) {
+		for (Route route : routes) {
+			GetDirectionsTask task = pendingRoutes.remove(route);
+			if (task != null) {
+				task.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Adds many Routes to the map as overlays on the roads and walkways they
+	 * follow. Directions are fetched and decoded in parallel on the
+	 * {@link DirectionsTransport} worker pool, and the resulting Polylines
+	 * are added on the main thread in short passes so that the screen stays
+	 * responsive. Batches still running when the screen stops are cancelled.
+	 * 
+	 * @param routes
+	 *            the Routes to draw
+	 * @param modeOfTransport
+	 *            Either {@link MODE_DRIVING} or {@link MODE_WALKING}
+	 * @param listener
+	 *            notified on the main thread of progress and completion; may
+	 *            be null
+	 * @throws Exception
+	 *             if modeOfTransport is neither {@link MODE_DRIVING} nor
+	 *             {@link MODE_WALKING}
+	 */
+	protected void drawRoutes(Collection<Route> routes, String modeOfTransport,
+			RouteBatchListener listener) throws Exception {
+		checkMode(modeOfTransport);
+		RouteBatch batch = new RouteBatch(new ArrayList<Route>(routes),
+				modeOfTransport, listener);
+		routeBatches.add(batch);
+		batch.start(DirectionsTransport.getDefault().getExecutor());
+	}
+
+	/**
+	 * Cancels every batch started by
+	 * {@link #drawRoutes(Collection, String, RouteBatchListener)} that has
+	 * not finished yet. Routes already drawn stay on the map.
+	 */
+	protected void cancelRouteBatches() {
+		for (RouteBatch batch : routeBatches) {
+			batch.cancel();
+		}
+		routeBatches.clear();
+	}
+
+	/**
+	 * @param modeOfTransport
+	 * @throws Exception
+	 *             if modeOfTransport is neither {@link MODE_DRIVING} nor
+	 *             {@link MODE_WALKING}
+	 */
+	private void checkMode(String modeOfTransport) throws Exception {
+		if (!MODE_WALKING.equals(modeOfTransport)
+				&& !MODE_DRIVING.equals(modeOfTransport)) {
 			throw new Exception(
 					"Must use either MapScreen.MODE_WALKING or MapScreen.MODE_DRIVING");
 		}
-		directionPoint = new GetDirectionsTask().execute(
-				route.getSource().getPosition(),
-				route.getDestination().getPosition()).get();
-		PolylineOptions rectLine = new PolylineOptions()
-				.width(route.getWidth()).color(route.getColor().toRawColor());
+	}
 
-		for (int i = 0; i < directionPoint.size(); i++) {
-			rectLine.add(directionPoint.get(i));
+	/**
+	 * Fetches the directions for a Route, computes its levels of detail and
+	 * builds the options for its Polyline at the current zoom level. Must not
+	 * be called on the main thread.
+	 * 
+	 * @param route
+	 * @param modeOfTransport
+	 * @param overviewOnly
+	 *            whether to fetch only the overview of the directions
+	 * @return the fetched Route, whose options are null if no directions
+	 *         could be found
+	 */
+	private FetchedRoute fetchRoute(Route route, String modeOfTransport,
+			boolean overviewOnly) {
+		DirectionsProvider direction = getDirectionsProvider();
+		LatLng source = route.getSource().getPosition();
+		LatLng destination = route.getDestination().getPosition();
+		RoutePoints directionPoint = overviewOnly ? direction
+				.getOverviewPoints(source, destination, modeOfTransport,
+						new RoutePoints()) : direction.getRoutePoints(source,
+				destination, modeOfTransport, new RoutePoints());
+		if (directionPoint == null) {
+			return new FetchedRoute(route, null, -1, null);
 		}
-		Polyline polyLine = myMap.addPolyline(rectLine);
-		routes.put(route, polyLine);
+		RouteDetail detail = new RouteDetail(directionPoint,
+				route.getSimplificationTolerance(),
+				route.getSimplificationToleranceMeters());
+		int level = detail.levelFor(cameraZoom);
+		PolylineOptions options = new PolylineOptions()
+				.width(route.getWidth()).color(route.getColor().toRawColor())
+				.addAll(detail.getPoints(level));
+		return new FetchedRoute(route, detail, level, options);
+	}
+
+	/**
+	 * Adds the Polyline of a fetched Route to the map. Must be called on the
+	 * main thread.
+	 * 
+	 * @param fetched
+	 *            a Route whose directions were found
+	 * @return the new Polyline
+	 */
+	private Polyline showRoute(FetchedRoute fetched) {
+		Polyline polyLine = myMap.addPolyline(fetched.options);
+		Polyline replaced = routes.put(fetched.route, polyLine);
+		if (replaced != null) {
+			replaced.remove();
+		}
+		routeDetails.put(fetched.route, fetched.detail);
+		fetched.detail.setShownLevel(fetched.level);
+		if (fetched.level != fetched.detail.levelFor(cameraZoom)) {
+			// The camera moved while the Route was being fetched
+			updateRouteDetail(fetched.detail, polyLine);
+		}
+		return polyLine;
+	}
+
+	/**
+	 * Shows the level of detail that matches the current zoom on a Route's
+	 * Polyline, if it is not already shown
+	 * 
+	 * @param detail
+	 * @param polyLine
+	 */
+	private void updateRouteDetail(RouteDetail detail, Polyline polyLine) {
+		int level = detail.levelFor(cameraZoom);
+		if (detail.needsUpdate(level)) {
+			polyLine.setPoints(detail.getPoints(level));
+		}
+		detail.setShownLevel(level);
+	}
+
+	/**
+	 * Starts fetching directions for a Route on a background thread
+	 * 
+	 * @param route
+	 * @param modeOfTransport
+	 * @param overviewOnly
+	 *            whether to fetch only the overview of the directions
+	 * @param listener
+	 *            notified once the task has drawn the Route, may be null
+	 * @param draw
+	 *            whether the task should add the Polyline itself when done
+	 * @param executor
+	 *            the executor to run the task on
+	 * @return the running task
+	 * @throws Exception
+	 *             if modeOfTransport is neither {@link MODE_DRIVING} nor
+	 *             {@link MODE_WALKING}
+	 */
+	private GetDirectionsTask startDirectionsTask(Route route,
+			String modeOfTransport, boolean overviewOnly,
+			RouteListener listener, boolean draw, Executor executor)
+			throws Exception {
+		checkMode(modeOfTransport);
+		cancelRoute(route);
+		GetDirectionsTask task = new GetDirectionsTask(route, modeOfTransport,
+				overviewOnly, listener, draw);
+		pendingRoutes.put(route, task);
+		task.executeOnExecutor(executor, route.getSource().getPosition(),
+				route.getDestination().getPosition());
+		return task;
+	}
+
+	/**
+	 * Return the cache that {@link #drawRoute(Route, String)} consults before
+	 * requesting directions, and that it saves fetched routes to
+	 * 
+	 * @return the RouteCache shared by every MapScreen
+	 */
+	protected RouteCache getRouteCache() {
+		return routeCache;
+	}
+
+	/**
+	 * Replace the cache used by {@link #drawRoute(Route, String)}, for
+	 * example to change its size, precision or time to live
+	 * 
+	 * @param cache
+	 *            the new RouteCache, or null to always request directions
+	 */
+	protected void setRouteCache(RouteCache cache) {
+		routeCache = cache;
+		routeCacheSet = true;
+	}
+
+	/**
+	 * Return the source of the directions that {@link #drawRoute(Route,
+	 * String)} draws
+	 * 
+	 * @return the DirectionsProvider set with {@link
+	 *         #setDirectionsProvider(DirectionsProvider)}, or a MapDirection
+	 *         that uses the RouteCache if none was set
+	 */
+	protected DirectionsProvider getDirectionsProvider() {
+		DirectionsProvider provider = directionsProvider;
+		return provider != null ? provider : new MapDirection(routeCache);
+	}
+
+	/**
+	 * Replace the source of the directions that {@link #drawRoute(Route,
+	 * String)} draws, for example with an {@link OfflineDirectionsProvider}
+	 * to route without a network connection
+	 * 
+	 * @param provider
+	 *            the new DirectionsProvider, or null to go back to Google's
+	 *            Directions service
+	 */
+	protected void setDirectionsProvider(DirectionsProvider provider) {
+		directionsProvider = provider;
 	}
 
 	/**
@@ -398,6 +1481,7 @@ public class MapScreen extends Activity implements
 			for (Route route : routes) {
 				this.routes.get(route).remove();
 				this.routes.remove(route);
+				routeDetails.remove(route);
 			}
 		} catch (Exception e) {
 			return false;
@@ -414,9 +1498,9 @@ public class MapScreen extends Activity implements
 		try {
 			for (Entry<Route, Polyline> e : routes.entrySet()) {
 				e.getValue().remove();
-				this.routes.remove(e.getKey());
 			}
 			this.routes = new HashMap<Route, Polyline>();
+			routeDetails.clear();
 		} catch (Exception e) {
 			return false;
 		}
@@ -471,13 +1555,21 @@ public class MapScreen extends Activity implements
 	/**
 	 * Pass in a locationTracker in order to receive location updates </br></br>
 	 * When the location changes, locationDidChange(Location location) will be
-	 * called
+	 * called. If the locationTracker batches fixes,
+	 * locationDidChange(List&lt;Location&gt; locations) is called with each
+	 * batch instead, unless it only hands over the latest fix.
 	 * 
 	 * @param locationTracker
 	 */
 	protected void getLocationUpdates(LocationTracker locationTracker) {
 		if (locationTracker != null && mLocationClient != null
 				&& servicesConnected() && mLocationClient.isConnected()) {
+			flushLocationBatch();
+			if (this.locationTracker != null) {
+				this.locationTracker.setLocationRequestListener(null);
+			}
+			this.locationTracker = locationTracker;
+			locationTracker.setLocationRequestListener(locationRequestListener);
 			mLocationClient.requestLocationUpdates(
 					locationTracker.getLocationRequest(), this);
 		}
@@ -487,6 +1579,11 @@ public class MapScreen extends Activity implements
 	 * Stop receiving location updates
 	 */
 	protected void stopLocationUpdates() {
+		flushLocationBatch();
+		if (locationTracker != null) {
+			locationTracker.setLocationRequestListener(null);
+		}
+		locationTracker = null;
 		mLocationClient.disconnect();
 	}
 
@@ -537,6 +1634,13 @@ public class MapScreen extends Activity implements
 				handleLongClick(point);
 			}
 		});
+		myMap.setOnCameraChangeListener(new OnCameraChangeListener() {
+			@Override
+			public void onCameraChange(CameraPosition position) {
+				handleCameraChange(position);
+			}
+		});
+		cameraZoom = myMap.getCameraPosition().zoom;
 		return myMap;
 	}
 
@@ -560,6 +1664,18 @@ public class MapScreen extends Activity implements
 	// ----------------------------------------------------------
 	@Override
 	protected void onStop() {
+		cancelRoute(pendingRoutes.keySet().toArray(
+				new Route[pendingRoutes.size()]));
+		cancelRouteBatches();
+		cancelMapItemBatches();
+		markerAnimator.cancelAll();
+		// Hand over the buffered fixes rather than drop them; this also
+		// removes the pending locationBatchFlusher
+		flushLocationBatch();
+		if (clusterTask != null) {
+			clusterTask.cancel(false);
+			clusterTask = null;
+		}
 		PersistenceManager.getInstance().savePersistentContext(this);
 		mLocationClient.disconnect();
 		super.onStop();
@@ -579,6 +1695,20 @@ public class MapScreen extends Activity implements
 		super.onPause();
 	}
 
+	// ----------------------------------------------------------
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		iconCache.trimMemory(level);
+	}
+
+	// ----------------------------------------------------------
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		iconCache.trimMemory(TRIM_MEMORY_COMPLETE);
+	}
+
 	// ----------------------------------------------------------
 	@Override
 	protected void onDestroy() {
@@ -826,8 +1956,66 @@ public class MapScreen extends Activity implements
 	 * Called by the LocationListener when the location changes 
 	 */
 	public void onLocationChanged(Location location) {
-		log("Location changed");
-		locationDidChange.dispatch(this, location);
+		if (locationTracker != null) {
+			// Drop bad fixes, smooth the rest and adapt to the user's motion
+			LocationValidator validator = locationTracker
+					.getLocationValidator();
+			if (validator != null && !validator.accept(location)) {
+				return;
+			}
+			LocationFilter filter = locationTracker.getLocationFilter();
+			if (filter != null) {
+				filter.filter(location);
+			}
+			TrackRecorder recorder = locationTracker.getTrackRecorder();
+			if (recorder != null) {
+				try {
+					recorder.record(location);
+				} catch (IOException e) {
+					Log.w("User Log", "Unable to record track", e);
+					locationTracker.setTrackRecorder(null);
+				}
+			}
+			// If the profile changes, locationRequestListener asks for its
+			// priority and interval
+			locationTracker.observe(location);
+		}
+		if (locationTracker == null || !locationTracker.isBatching()) {
+			log("Location changed");
+			locationDidChange.dispatch(this, location);
+			return;
+		}
+		locationBatch.add(location);
+		int batchSize = locationTracker.getBatchSize();
+		if (batchSize > 0 && locationBatch.size() >= batchSize) {
+			flushLocationBatch();
+		} else if (locationBatch.size() == 1
+				&& locationTracker.getBatchFlushInterval() > 0) {
+			handler.postDelayed(locationBatchFlusher,
+					locationTracker.getBatchFlushInterval());
+		}
+	}
+
+	/**
+	 * Hands the fixes buffered by a batching LocationTracker to
+	 * locationDidChange, either all of them in the order they arrived or
+	 * just the latest
+	 */
+	private void flushLocationBatch() {
+		handler.removeCallbacks(locationBatchFlusher);
+		if (locationBatch.isEmpty()) {
+			return;
+		}
+		log("Location changed (" + locationBatch.size() + " fixes)");
+		if (locationTracker != null && locationTracker.isLatestFixOnly()) {
+			Location latest = locationBatch.get(locationBatch.size() - 1);
+			locationBatch.clear();
+			locationDidChange.dispatch(this, latest);
+		} else {
+			List<Location> batch = new ArrayList<Location>(locationBatch);
+			locationBatch.clear();
+			locationDidChange.dispatch(this, batch);
+		}
 	}
 
 	/**
@@ -839,20 +2027,313 @@ public class MapScreen extends Activity implements
 	 * @author Tyler Lenig
 	 */
 	private class GetDirectionsTask extends
-			AsyncTask<LatLng, Void, ArrayList<LatLng>> {
-		protected ArrayList<LatLng> doInBackground(LatLng... points) {
-			MapDirection direction = new MapDirection();
-			Document doc = null;
-			if (MapScreen.mode.equals(MapDirection.MODE_DRIVING)) {
-				doc = direction.getDocument(points[0], points[1],
-						MapDirection.MODE_DRIVING);
-			} else if (MapScreen.mode.equals(MapDirection.MODE_WALKING)) {
-				doc = direction.getDocument(points[0], points[1],
-						MapDirection.MODE_WALKING);
-			}
-
-			ArrayList<LatLng> directionPoint = direction.getDirection(doc);
-			return directionPoint;
+			AsyncTask<LatLng, Void, FetchedRoute> {
+		private final Route route;
+		private final String mode;
+		private final boolean overviewOnly;
+		private final RouteListener listener;
+		private final boolean draw;
+
+		GetDirectionsTask(Route route, String mode, boolean overviewOnly,
+				RouteListener listener, boolean draw) {
+			this.route = route;
+			this.mode = mode;
+			this.overviewOnly = overviewOnly;
+			this.listener = listener;
+			this.draw = draw;
+		}
+
+		protected FetchedRoute doInBackground(LatLng... points) {
+			// Build the options here so that the main thread only has to add
+			// the Polyline
+			try {
+				return fetchRoute(route, mode, overviewOnly);
+			} catch (RuntimeException e) {
+				Log.w("User Log", "Unable to get directions for a Route", e);
+				return new FetchedRoute(route, null, -1, null);
+			}
+		}
+
+		@Override
+		protected void onPostExecute(FetchedRoute fetched) {
+			if (!draw || pendingRoutes.get(route) != this) {
+				return;
+			}
+			pendingRoutes.remove(route);
+			if (fetched.options == null || myMap == null) {
+				if (listener != null) {
+					listener.routeFailed(route);
+				}
+				return;
+			}
+			Polyline polyLine = showRoute(fetched);
+			if (listener != null) {
+				listener.routeWasDrawn(route, polyLine);
+			}
+		}
+	}
+
+	/**
+	 * Builds the clusters for clusterMapItems in the background, then shows
+	 * the ones for the current zoom level
+	 */
+	private class BuildClustersTask extends
+			AsyncTask<Void, Void, ClusterHierarchy> {
+		private final List<MapItem> items;
+		private final int gridSize;
+
+		BuildClustersTask(List<MapItem> items, int gridSize) {
+			this.items = items;
+			this.gridSize = gridSize;
+		}
+
+		protected ClusterHierarchy doInBackground(Void... params) {
+			return new ClusterHierarchy(items, gridSize);
+		}
+
+		@Override
+		protected void onPostExecute(ClusterHierarchy built) {
+			if (clusterTask != this) {
+				return;
+			}
+			clusterTask = null;
+			clusters = built;
+			shownClusterLevel = -1;
+			updateClusters();
+		}
+	}
+
+	/**
+	 * A Route whose directions have been fetched in the background
+	 */
+	private static class FetchedRoute {
+		final Route route;
+		final RouteDetail detail;
+		// The level of detail that options holds
+		final int level;
+		// Null if no directions could be found
+		final PolylineOptions options;
+
+		FetchedRoute(Route route, RouteDetail detail, int level,
+				PolylineOptions options) {
+			this.route = route;
+			this.detail = detail;
+			this.level = level;
+			this.options = options;
+		}
+	}
+
+	/**
+	 * Fetches a collection of Routes in parallel and adds their Polylines on
+	 * the main thread, a few at a time
+	 */
+	private class RouteBatch implements Runnable {
+		// How long a single pass may spend adding Polylines
+		private static final long PASS_BUDGET_MILLIS = 8;
+
+		private final List<Route> batchRoutes;
+		private final String mode;
+		private final RouteBatchListener listener;
+		private final ConcurrentLinkedQueue<FetchedRoute> fetched = new ConcurrentLinkedQueue<FetchedRoute>();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private final ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+		private final ArrayList<Route> failed = new ArrayList<Route>();
+		private int finished;
+		private volatile boolean cancelled;
+
+		RouteBatch(List<Route> batchRoutes, String mode,
+				RouteBatchListener listener) {
+			this.batchRoutes = batchRoutes;
+			this.mode = mode;
+			this.listener = listener;
+		}
+
+		void start(ExecutorService executor) {
+			if (batchRoutes.isEmpty()) {
+				schedule();
+				return;
+			}
+			for (final Route route : batchRoutes) {
+				futures.add(executor.submit(new Runnable() {
+					public void run() {
+						if (cancelled) {
+							return;
+						}
+						try {
+							fetched.add(fetchRoute(route, mode, false));
+						} catch (RuntimeException e) {
+							// Report the Route as failed rather than leave the
+							// batch waiting for it forever
+							Log.w("User Log",
+									"Unable to get directions for a Route", e);
+							fetched.add(new FetchedRoute(route, null, -1, null));
+						}
+						schedule();
+					}
+				}));
+			}
+		}
+
+		void cancel() {
+			cancelled = true;
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+			handler.removeCallbacks(this);
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				handler.post(this);
+			}
+		}
+
+		/**
+		 * Adds the Polylines fetched so far, until the pass budget runs out
+		 */
+		public void run() {
+			scheduled.set(false);
+			if (cancelled) {
+				return;
+			}
+
+			long deadline = SystemClock.uptimeMillis() + PASS_BUDGET_MILLIS;
+			FetchedRoute next;
+			while ((next = fetched.poll()) != null) {
+				if (next.options == null || myMap == null) {
+					failed.add(next.route);
+				} else {
+					showRoute(next);
+				}
+				finished++;
+				if (SystemClock.uptimeMillis() >= deadline) {
+					break;
+				}
+			}
+
+			if (listener != null && !batchRoutes.isEmpty()) {
+				listener.routeBatchProgressed(finished, batchRoutes.size());
+			}
+			if (finished == batchRoutes.size()) {
+				routeBatches.remove(this);
+				if (listener != null) {
+					listener.routeBatchFinished(failed);
+				}
+			} else if (!fetched.isEmpty()) {
+				schedule();
+			}
+		}
+	}
+
+	/**
+	 * MapItems being added to or removed from the map by addMapItems or
+	 * removeMapItems
+	 */
+	private class MapItemBatch {
+		private final List<MapItem> items;
+		private final boolean add;
+		// Whether the MapItems are added to or removed from addedItems and
+		// mapItemTree, rather than only having their Markers shown or hidden
+		private final boolean indexed;
+		private final boolean zoomToItems;
+		// For batches started by setMapItems, the MapItem each one replaces,
+		// or null where it is new
+		private final List<MapItem> previous;
+		private final MapItemBatchListener listener;
+		private LatLngBounds.Builder bounds;
+		private int finished;
+
+		MapItemBatch(List<MapItem> items, boolean add, boolean indexed,
+				boolean zoomToItems, MapItemBatchListener listener) {
+			this.items = items;
+			this.add = add;
+			this.indexed = indexed;
+			this.zoomToItems = zoomToItems;
+			this.previous = null;
+			this.listener = listener;
+		}
+
+		MapItemBatch(List<MapItem> items, List<MapItem> previous,
+				MapItemBatchListener listener) {
+			this.items = items;
+			this.add = true;
+			this.indexed = true;
+			this.zoomToItems = false;
+			this.previous = previous;
+			this.listener = listener;
+		}
+
+		/**
+		 * Adds or removes Markers until the batch is done or the deadline
+		 * passes
+		 * 
+		 * @param deadline
+		 *            in {@link SystemClock#uptimeMillis()} time
+		 * @return whether the batch is done
+		 */
+		boolean apply(long deadline) {
+			while (finished < items.size()) {
+				MapItem replaced = previous != null ? previous.get(finished)
+						: null;
+				MapItem item = items.get(finished++);
+				if (replaced != null) {
+					replaceMapItem(replaced, item);
+				} else if (add) {
+					if (item != null && myMap != null) {
+						if (indexed) {
+							addedItems.add(item);
+							mapItemTree.put(item);
+						}
+						// Markers culled since the batch was started are
+						// skipped
+						if (!addedItems.contains(item) || isInCullBounds(item)) {
+							showMapItem(item);
+						}
+						if (zoomToItems) {
+							if (bounds == null) {
+								bounds = LatLngBounds.builder();
+							}
+							bounds.include(item.getPosition());
+						}
+					}
+				} else {
+					if (indexed) {
+						forgetId(item);
+						addedItems.remove(item);
+						mapItemTree.remove(item);
+					}
+					Marker marker = mapItems.remove(item);
+					if (marker != null) {
+						markerPool.recycle(marker);
+					}
+				}
+				if (SystemClock.uptimeMillis() >= deadline) {
+					break;
+				}
+			}
+			if (listener != null && !items.isEmpty()) {
+				listener.mapItemBatchProgressed(finished, items.size());
+			}
+			return finished == items.size();
+		}
+
+		/**
+		 * Moves the camera, if asked to, and notifies the listener
+		 */
+		void finish() {
+			if (bounds != null && myMap != null) {
+				LatLngBounds shown = bounds.build();
+				if (shown.southwest.equals(shown.northeast)) {
+					myMap.moveCamera(CameraUpdateFactory
+							.newLatLng(shown.southwest));
+				} else {
+					myMap.moveCamera(CameraUpdateFactory.newLatLngBounds(
+							shown, BATCH_CAMERA_PADDING));
+				}
+			}
+			if (listener != null) {
+				listener.mapItemBatchFinished();
+			}
 		}
 	}
 }
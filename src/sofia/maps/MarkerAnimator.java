@@ -0,0 +1,380 @@
+package sofia.maps;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import sofia.gps.RoutePoints;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * Moves MapItems smoothly to new positions instead of making them jump, for
+ * example when the positions of a fleet of vehicles arrive every few
+ * seconds. A single loop on the main thread advances every animation once per
+ * frame, so the cost of animating stays flat as the number of MapItems grows.
+ * MapItems move along the great circle to their target, or along a given
+ * path such as a road, and can optionally be rotated to face the way they are
+ * moving.
+ * </br></br>
+ * Positions are set through {@link MapItem#setPosition(LatLng)}, so the
+ * MapItems need not be on the map, and their Markers follow them if they are.
+ * Every MapScreen has one, returned by {@link MapScreen#getMarkerAnimator()}.
+ * Its methods must be called on the main thread.
+ */
+public class MarkerAnimator implements Runnable {
+
+	// Constants
+	private static final long FRAME_MILLIS = 16;
+	private static final double EARTH_RADIUS = 6371008.8;
+
+	// Fields
+	private final Handler handler;
+	// Each Animation knows its index here, so replacing or cancelling one
+	// does not search the list
+	private final ArrayList<Animation> animations = new ArrayList<Animation>();
+	private final IdentityHashMap<MapItem, Animation> byItem = new IdentityHashMap<MapItem, Animation>();
+	private boolean scheduled;
+	private boolean rotateToBearing;
+	private int maxAnimationsPerFrame = 500;
+	// Where the next frame starts advancing animations, when there are more
+	// than maxAnimationsPerFrame
+	private int cursor;
+
+	/**
+	 * @param handler
+	 *            a Handler for the main thread
+	 */
+	public MarkerAnimator(Handler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Moves a MapItem from where it is now to a target along the great
+	 * circle between them. If the MapItem is already moving, it continues
+	 * from where it has got to.
+	 *
+	 * @param item
+	 * @param target
+	 * @param durationMillis
+	 *            how long the move takes
+	 */
+	public void animateTo(MapItem item, LatLng target, long durationMillis) {
+		LatLng start = item.getPosition();
+		double[] path = new double[] { start.latitude, start.longitude,
+				target.latitude, target.longitude };
+		start(item, path, 2, durationMillis);
+	}
+
+	/**
+	 * Moves a MapItem along a path, such as a stretch of road, at a constant
+	 * speed. The MapItem first moves from where it is now to the start of the
+	 * path, if it is not already there.
+	 *
+	 * @param item
+	 * @param path
+	 *            the points to move through; it is copied
+	 * @param durationMillis
+	 *            how long the move takes
+	 */
+	public void animateAlong(MapItem item, RoutePoints path,
+			long durationMillis) {
+		LatLng start = item.getPosition();
+		double[] points = new double[path.size() * 2 + 2];
+		points[0] = start.latitude;
+		points[1] = start.longitude;
+		System.arraycopy(path.getCoordinates(), 0, points, 2, path.size() * 2);
+		start(item, points, path.size() + 1, durationMillis);
+	}
+
+	/**
+	 * Stops moving a MapItem, leaving it where it has got to
+	 *
+	 * @param item
+	 */
+	public void cancel(MapItem item) {
+		Animation animation = byItem.remove(item);
+		if (animation != null) {
+			removeAt(animation.index);
+		}
+	}
+
+	/**
+	 * Stops moving every MapItem
+	 */
+	public void cancelAll() {
+		animations.clear();
+		byItem.clear();
+		handler.removeCallbacks(this);
+		scheduled = false;
+	}
+
+	/**
+	 * @param item
+	 * @return whether the MapItem is moving
+	 */
+	public boolean isAnimating(MapItem item) {
+		return byItem.containsKey(item);
+	}
+
+	/**
+	 * @return the number of MapItems moving
+	 */
+	public int getAnimationCount() {
+		return animations.size();
+	}
+
+	/**
+	 * @return whether MapItems are rotated to face the way they are moving
+	 */
+	public boolean isRotateToBearing() {
+		return rotateToBearing;
+	}
+
+	/**
+	 * Sets whether MapItems are rotated, with {@link MapItem#setRotation(float)},
+	 * to face the way they are moving. This suits flat icons that point north
+	 * when their rotation is 0.
+	 *
+	 * @param rotateToBearing
+	 *            the default is false
+	 */
+	public void setRotateToBearing(boolean rotateToBearing) {
+		this.rotateToBearing = rotateToBearing;
+	}
+
+	/**
+	 * @return the most MapItems moved in a single frame
+	 */
+	public int getMaxAnimationsPerFrame() {
+		return maxAnimationsPerFrame;
+	}
+
+	/**
+	 * Sets the most MapItems moved in a single frame. When more are moving,
+	 * each frame moves the next few in turn, so every MapItem still moves,
+	 * just less often.
+	 *
+	 * @param max
+	 *            at least 1; the default is 500
+	 */
+	public void setMaxAnimationsPerFrame(int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("max must be at least 1");
+		}
+		maxAnimationsPerFrame = max;
+	}
+
+	private void start(MapItem item, double[] path, int count, long duration) {
+		Animation animation = new Animation(item, path, count,
+				SystemClock.uptimeMillis(), Math.max(1, duration));
+		Animation previous = byItem.put(item, animation);
+		if (previous != null) {
+			animation.index = previous.index;
+			animations.set(previous.index, animation);
+		} else {
+			animation.index = animations.size();
+			animations.add(animation);
+		}
+		if (!scheduled) {
+			scheduled = true;
+			handler.post(this);
+		}
+	}
+
+	/**
+	 * Advances the animations by one frame
+	 */
+	public void run() {
+		scheduled = false;
+		long now = SystemClock.uptimeMillis();
+		int count = Math.min(animations.size(), maxAnimationsPerFrame);
+		if (cursor >= animations.size()) {
+			cursor = 0;
+		}
+		int finished = 0;
+		double[] point = new double[3];
+		for (int i = 0; i < count; i++) {
+			int index = (cursor + i) % animations.size();
+			Animation animation = animations.get(index);
+			double fraction = (double) (now - animation.startTime)
+					/ animation.duration;
+			animation.pointAt(Math.min(1, fraction), point);
+			animation.item.setPosition(new LatLng(point[0], point[1]));
+			if (rotateToBearing && !Double.isNaN(point[2])) {
+				animation.item.setRotation((float) point[2]);
+			}
+			if (fraction >= 1) {
+				animation.finished = true;
+				finished++;
+			}
+		}
+		cursor += count;
+
+		if (finished > 0) {
+			int kept = 0;
+			for (int i = 0; i < animations.size(); i++) {
+				Animation animation = animations.get(i);
+				if (animation.finished) {
+					byItem.remove(animation.item);
+					if (i < cursor) {
+						cursor--;
+					}
+				} else {
+					animation.index = kept;
+					animations.set(kept++, animation);
+				}
+			}
+			while (animations.size() > kept) {
+				animations.remove(animations.size() - 1);
+			}
+		}
+
+		if (!animations.isEmpty()) {
+			scheduled = true;
+			handler.postAtTime(this, now + FRAME_MILLIS);
+		}
+	}
+
+	/**
+	 * Removes an animation by moving another into its place, keeping those
+	 * already advanced this round before the cursor and the rest after it
+	 */
+	private void removeAt(int index) {
+		int last = animations.size() - 1;
+		if (index < cursor && cursor < animations.size()) {
+			cursor--;
+			move(cursor, index);
+			index = cursor;
+		}
+		move(last, index);
+		animations.remove(last);
+	}
+
+	private void move(int from, int to) {
+		Animation animation = animations.get(from);
+		animations.set(to, animation);
+		animation.index = to;
+	}
+
+	/**
+	 * Writes the point a fraction f of the way along the great circle from
+	 * (lat1, lng1) to (lat2, lng2) into out[0] and out[1]
+	 */
+	private static void interpolate(double lat1, double lng1, double lat2,
+			double lng2, double f, double[] out) {
+		double phi1 = Math.toRadians(lat1), lambda1 = Math.toRadians(lng1);
+		double phi2 = Math.toRadians(lat2), lambda2 = Math.toRadians(lng2);
+		double x1 = Math.cos(phi1) * Math.cos(lambda1);
+		double y1 = Math.cos(phi1) * Math.sin(lambda1);
+		double z1 = Math.sin(phi1);
+		double x2 = Math.cos(phi2) * Math.cos(lambda2);
+		double y2 = Math.cos(phi2) * Math.sin(lambda2);
+		double z2 = Math.sin(phi2);
+		double angle = Math.acos(Math.max(-1, Math.min(1, x1 * x2 + y1 * y2
+				+ z1 * z2)));
+		double a, b;
+		if (angle < 1E-12) {
+			a = 1 - f;
+			b = f;
+		} else {
+			a = Math.sin((1 - f) * angle) / Math.sin(angle);
+			b = Math.sin(f * angle) / Math.sin(angle);
+		}
+		double x = a * x1 + b * x2;
+		double y = a * y1 + b * y2;
+		double z = a * z1 + b * z2;
+		out[0] = Math.toDegrees(Math.atan2(z, Math.sqrt(x * x + y * y)));
+		out[1] = Math.toDegrees(Math.atan2(y, x));
+	}
+
+	/**
+	 * @return the initial bearing from the first point to the second, in
+	 *         degrees clockwise from north, or NaN if they are the same
+	 */
+	private static double bearing(double lat1, double lng1, double lat2,
+			double lng2) {
+		if (lat1 == lat2 && lng1 == lng2) {
+			return Double.NaN;
+		}
+		double phi1 = Math.toRadians(lat1), phi2 = Math.toRadians(lat2);
+		double dLambda = Math.toRadians(lng2 - lng1);
+		double y = Math.sin(dLambda) * Math.cos(phi2);
+		double x = Math.cos(phi1) * Math.sin(phi2) - Math.sin(phi1)
+				* Math.cos(phi2) * Math.cos(dLambda);
+		return (Math.toDegrees(Math.atan2(y, x)) + 360) % 360;
+	}
+
+	private static double distance(double lat1, double lng1, double lat2,
+			double lng2) {
+		double dLat = Math.toRadians(lat2 - lat1);
+		double dLng = Math.toRadians(lng2 - lng1);
+		double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+				+ Math.cos(Math.toRadians(lat1))
+				* Math.cos(Math.toRadians(lat2)) * Math.sin(dLng / 2)
+				* Math.sin(dLng / 2);
+		return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+	/**
+	 * A MapItem moving along a path at a constant speed
+	 */
+	private static class Animation {
+		final MapItem item;
+		// Packed latitude and longitude pairs
+		final double[] path;
+		final int count;
+		// cumulative[i] is the distance along the path to point i
+		final double[] cumulative;
+		final long startTime;
+		final long duration;
+		boolean finished;
+		// Where this is in animations
+		int index;
+		// The segment the last point was on, since points only move forward
+		int segment;
+
+		Animation(MapItem item, double[] path, int count, long startTime,
+				long duration) {
+			this.item = item;
+			this.path = path;
+			this.count = count;
+			this.startTime = startTime;
+			this.duration = duration;
+			cumulative = new double[count];
+			for (int i = 1; i < count; i++) {
+				cumulative[i] = cumulative[i - 1]
+						+ distance(path[2 * i - 2], path[2 * i - 1],
+								path[2 * i], path[2 * i + 1]);
+			}
+		}
+
+		/**
+		 * Writes the point a fraction f of the way along the path into
+		 * out[0] and out[1], and the bearing there into out[2]
+		 */
+		void pointAt(double f, double[] out) {
+			if (count < 2) {
+				out[0] = path[0];
+				out[1] = path[1];
+				out[2] = Double.NaN;
+				return;
+			}
+			double target = f * cumulative[count - 1];
+			while (segment < count - 2 && cumulative[segment + 1] < target) {
+				segment++;
+			}
+			int i = segment;
+			double length = cumulative[i + 1] - cumulative[i];
+			double g = length > 0 ? (target - cumulative[i]) / length : 1;
+			g = Math.max(0, Math.min(1, g));
+			double lat1 = path[2 * i], lng1 = path[2 * i + 1];
+			double lat2 = path[2 * i + 2], lng2 = path[2 * i + 3];
+			interpolate(lat1, lng1, lat2, lng2, g, out);
+			out[2] = g < 1 ? bearing(out[0], out[1], lat2, lng2) : bearing(
+					lat1, lng1, lat2, lng2);
+		}
+	}
+}
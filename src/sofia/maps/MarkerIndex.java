@@ -0,0 +1,118 @@
+package sofia.maps;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import com.google.android.gms.maps.model.Marker;
+
+/**
+ * The two-way mapping between the MapItems on a map and the Markers that show
+ * them. Lookups in either direction, additions and removals are all constant
+ * time. MapItems are keyed by identity, so two MapItems at the same position
+ * are still distinct, and each MapItem has at most one Marker.
+ */
+class MarkerIndex {
+
+	// Fields
+	private final MarkerUpdater updater;
+	private final HashMap<Marker, MapItem> itemsByMarker = new HashMap<Marker, MapItem>();
+	private final IdentityHashMap<MapItem, Marker> markersByItem = new IdentityHashMap<MapItem, Marker>();
+
+	/**
+	 * @param updater
+	 *            applies the changes made to MapItems to their Markers
+	 */
+	MarkerIndex(MarkerUpdater updater) {
+		this.updater = updater;
+	}
+
+	/**
+	 * Records that a Marker shows a MapItem, and binds the MapItem to it
+	 *
+	 * @param item
+	 * @param marker
+	 * @return the Marker that showed the MapItem before, which the caller
+	 *         should remove from the map, or null if there was none
+	 */
+	Marker put(MapItem item, Marker marker) {
+		Marker previous = markersByItem.put(item, marker);
+		if (previous != null) {
+			itemsByMarker.remove(previous);
+		}
+		MapItem previousItem = itemsByMarker.put(marker, item);
+		if (previousItem != null && previousItem != item) {
+			markersByItem.remove(previousItem);
+			previousItem.unbind();
+		}
+		item.bind(marker, updater);
+		return previous;
+	}
+
+	/**
+	 * @param marker
+	 * @return the MapItem the Marker shows, or null if it shows none
+	 */
+	MapItem getItem(Marker marker) {
+		return itemsByMarker.get(marker);
+	}
+
+	/**
+	 * @param item
+	 * @return the Marker that shows the MapItem, or null if it is not on the
+	 *         map
+	 */
+	Marker getMarker(MapItem item) {
+		return markersByItem.get(item);
+	}
+
+	/**
+	 * Forgets a MapItem and unbinds it from its Marker
+	 *
+	 * @param item
+	 * @return the Marker that showed it, which the caller should remove from
+	 *         the map, or null if it was not on the map
+	 */
+	Marker remove(MapItem item) {
+		Marker marker = markersByItem.remove(item);
+		if (marker != null) {
+			itemsByMarker.remove(marker);
+			item.unbind();
+		}
+		return marker;
+	}
+
+	/**
+	 * @return the number of MapItems on the map
+	 */
+	int size() {
+		return markersByItem.size();
+	}
+
+	/**
+	 * @return a view of the MapItems on the map; it must not be modified
+	 */
+	Set<MapItem> items() {
+		return markersByItem.keySet();
+	}
+
+	/**
+	 * @return a view of the Markers on the map; it must not be modified
+	 */
+	Collection<Marker> markers() {
+		return markersByItem.values();
+	}
+
+	/**
+	 * Forgets every MapItem and unbinds them from their Markers
+	 */
+	void clear() {
+		for (MapItem item : markersByItem.keySet()) {
+			item.unbind();
+		}
+		updater.cancel();
+		itemsByMarker.clear();
+		markersByItem.clear();
+	}
+}
@@ -0,0 +1,167 @@
+package sofia.maps;
+
+import java.util.ArrayList;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+/**
+ * Markers that have been taken off the map by hiding them rather than
+ * removing them, so that they can be shown again for another MapItem with a
+ * few property updates instead of a new call to
+ * {@link GoogleMap#addMarker(MarkerOptions)}. Hidden Markers still cost some
+ * memory, so the pool holds at most a fixed number of them and removes any
+ * more.
+ */
+class MarkerPool {
+
+	// Fields
+	private final ArrayList<Marker> free = new ArrayList<Marker>();
+	private int capacity;
+	private long hitCount, missCount;
+
+	/**
+	 * @param capacity
+	 *            the most hidden Markers to keep
+	 */
+	MarkerPool(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Shows a Marker with the given options, reusing a hidden one if there is
+	 * one
+	 *
+	 * @param map
+	 * @param options
+	 * @return the Marker
+	 */
+	Marker obtain(GoogleMap map, MarkerOptions options) {
+		if (free.isEmpty()) {
+			missCount++;
+			return map.addMarker(options);
+		}
+		hitCount++;
+		Marker marker = free.remove(free.size() - 1);
+		update(marker, null, options);
+		return marker;
+	}
+
+	/**
+	 * Sets the properties of a Marker that differ between two sets of options
+	 *
+	 * @param marker
+	 * @param from
+	 *            the options the Marker currently shows, or null to set every
+	 *            property
+	 * @param to
+	 *            the options to show
+	 */
+	static void update(Marker marker, MarkerOptions from, MarkerOptions to) {
+		if (from == null || !equal(from.getPosition(), to.getPosition())) {
+			marker.setPosition(to.getPosition());
+		}
+		if (from == null || !equal(from.getTitle(), to.getTitle())) {
+			marker.setTitle(to.getTitle());
+		}
+		if (from == null || !equal(from.getSnippet(), to.getSnippet())) {
+			marker.setSnippet(to.getSnippet());
+		}
+		if (from == null || from.getIcon() != to.getIcon()) {
+			marker.setIcon(to.getIcon() != null ? to.getIcon()
+					: BitmapDescriptorFactory.defaultMarker());
+		}
+		if (from == null || from.getAnchorU() != to.getAnchorU()
+				|| from.getAnchorV() != to.getAnchorV()) {
+			marker.setAnchor(to.getAnchorU(), to.getAnchorV());
+		}
+		if (from == null || from.getAlpha() != to.getAlpha()) {
+			marker.setAlpha(to.getAlpha());
+		}
+		if (from == null || from.getRotation() != to.getRotation()) {
+			marker.setRotation(to.getRotation());
+		}
+		if (from == null || from.isFlat() != to.isFlat()) {
+			marker.setFlat(to.isFlat());
+		}
+		if (from == null || from.isDraggable() != to.isDraggable()) {
+			marker.setDraggable(to.isDraggable());
+		}
+		if (from == null || from.isVisible() != to.isVisible()) {
+			marker.setVisible(to.isVisible());
+		}
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Hides a Marker and keeps it for reuse, or removes it if the pool is
+	 * full
+	 *
+	 * @param marker
+	 */
+	void recycle(Marker marker) {
+		if (free.size() >= capacity) {
+			marker.remove();
+			return;
+		}
+		marker.hideInfoWindow();
+		marker.setVisible(false);
+		free.add(marker);
+	}
+
+	/**
+	 * Removes every hidden Marker from the map
+	 */
+	void clear() {
+		for (Marker marker : free) {
+			marker.remove();
+		}
+		free.clear();
+	}
+
+	/**
+	 * @return the most hidden Markers kept
+	 */
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Changes the most hidden Markers kept, removing any past the new
+	 * capacity
+	 *
+	 * @param capacity
+	 */
+	void setCapacity(int capacity) {
+		this.capacity = capacity;
+		while (free.size() > capacity) {
+			free.remove(free.size() - 1).remove();
+		}
+	}
+
+	/**
+	 * @return the number of hidden Markers kept
+	 */
+	int size() {
+		return free.size();
+	}
+
+	/**
+	 * @return the number of Markers shown by reusing a hidden one
+	 */
+	long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * @return the number of Markers that had to be added to the map
+	 */
+	long getMissCount() {
+		return missCount;
+	}
+}
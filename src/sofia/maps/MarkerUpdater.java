@@ -0,0 +1,80 @@
+package sofia.maps;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Applies the changes made to MapItems that are on the map to their Markers.
+ * Changes are collected as they are made, from any thread, and applied on the
+ * main thread at most once per frame, so a MapItem changed several times in
+ * a frame only updates its Marker once.
+ */
+class MarkerUpdater implements Runnable {
+
+	// Constants
+	private static final long FRAME_MILLIS = 16;
+
+	// Fields
+	private final Handler handler;
+	private final MapItemTree tree;
+	private final ConcurrentLinkedQueue<MapItem> changed = new ConcurrentLinkedQueue<MapItem>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private long lastRun;
+
+	/**
+	 * @param handler
+	 *            a Handler for the main thread
+	 * @param tree
+	 *            the spatial index to keep up to date as MapItems move
+	 */
+	MarkerUpdater(Handler handler, MapItemTree tree) {
+		this.handler = handler;
+		this.tree = tree;
+	}
+
+	/**
+	 * Queues a MapItem whose Marker is out of date. Called by the MapItem the
+	 * first time it changes after its Marker was last updated.
+	 *
+	 * @param item
+	 */
+	void schedule(MapItem item) {
+		changed.add(item);
+		if (scheduled.compareAndSet(false, true)) {
+			long next = lastRun + FRAME_MILLIS;
+			long now = SystemClock.uptimeMillis();
+			if (next > now) {
+				handler.postAtTime(this, next);
+			} else {
+				handler.post(this);
+			}
+		}
+	}
+
+	/**
+	 * Stops any pending update
+	 */
+	void cancel() {
+		handler.removeCallbacks(this);
+		changed.clear();
+		scheduled.set(false);
+	}
+
+	/**
+	 * Updates the Markers of the queued MapItems
+	 */
+	public void run() {
+		scheduled.set(false);
+		lastRun = SystemClock.uptimeMillis();
+		MapItem item;
+		while ((item = changed.poll()) != null) {
+			if ((item.applyChanges() & MapItem.POSITION) != 0
+					&& tree.contains(item)) {
+				tree.put(item);
+			}
+		}
+	}
+}
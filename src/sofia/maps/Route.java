@@ -25,6 +25,11 @@ public class Route {
 	private float width, zIndex;
 	private boolean visible;
 
+	// How far simplified points may stray from the full route when it is
+	// drawn with directions
+	private float simplificationTolerance = 1;
+	private float simplificationToleranceMeters = 0;
+
 	/**
 	 * Default constructor </br></br> Creates a Polyline with the given source
 	 * and destination. The default line is colored black with a width of
@@ -146,4 +151,45 @@ public class Route {
 		this.visible = visible;
 		this.myRoute.visible(visible);
 	}
+
+	/**
+	 * @return the simplification tolerance, in density-independent pixels
+	 */
+	public float getSimplificationTolerance() {
+		return simplificationTolerance;
+	}
+
+	/**
+	 * Specifies how far, in density-independent pixels at the current zoom
+	 * level, a point of the Route may be from the line that is drawn when the
+	 * Route is drawn with directions. Points within this distance are dropped,
+	 * so that zoomed-out Routes draw far fewer points. The default is 1; 0
+	 * draws every point. Takes effect the next time the Route is drawn.
+	 * 
+	 * @param simplificationTolerance
+	 */
+	public void setSimplificationTolerance(float simplificationTolerance) {
+		this.simplificationTolerance = simplificationTolerance;
+	}
+
+	/**
+	 * @return the simplification tolerance, in meters
+	 */
+	public float getSimplificationToleranceMeters() {
+		return simplificationToleranceMeters;
+	}
+
+	/**
+	 * Specifies how far, in meters, a point of the Route may be from the line
+	 * that is drawn when the Route is drawn with directions, regardless of the
+	 * zoom level. The larger of this and {@link #getSimplificationTolerance()}
+	 * is used. The default is 0. Takes effect the next time the Route is
+	 * drawn.
+	 * 
+	 * @param simplificationToleranceMeters
+	 */
+	public void setSimplificationToleranceMeters(
+			float simplificationToleranceMeters) {
+		this.simplificationToleranceMeters = simplificationToleranceMeters;
+	}
 }
@@ -0,0 +1,29 @@
+package sofia.maps;
+
+import java.util.List;
+
+/**
+ * Receives progress from {@link MapScreen#drawRoutes(java.util.Collection,
+ * String, RouteBatchListener)}. Both methods are called on the main thread.
+ * Neither is called after the batch is cancelled.
+ */
+public interface RouteBatchListener {
+
+	/**
+	 * Called after each pass that adds Polylines to the map
+	 *
+	 * @param finished
+	 *            how many Routes have been drawn or have failed so far
+	 * @param total
+	 *            how many Routes are in the batch
+	 */
+	void routeBatchProgressed(int finished, int total);
+
+	/**
+	 * Called once every Route in the batch has been drawn or has failed
+	 *
+	 * @param failed
+	 *            the Routes for which no directions could be found
+	 */
+	void routeBatchFinished(List<Route> failed);
+}
@@ -0,0 +1,115 @@
+package sofia.maps;
+
+import java.util.List;
+
+import sofia.gps.PolylineSimplifier;
+import sofia.gps.RoutePoints;
+
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * The levels of detail of a drawn Route. Each whole-number zoom level gets a
+ * copy of the full route simplified so that no dropped point is further from
+ * the line than the Route's tolerance at that zoom, and levels that come out
+ * identical share the same points.
+ */
+class RouteDetail {
+
+	// Constants
+	static final int MIN_ZOOM = 2;
+	static final int MAX_ZOOM = 21;
+
+	// Meters per density-independent pixel at the equator at zoom level 0,
+	// for the 256dp tiles that Google Maps uses
+	private static final double METERS_PER_DP_AT_ZOOM_0 = 156543.03392;
+
+	// Fields
+	// levels[z - MIN_ZOOM] is used for zoom levels in [z, z + 1)
+	private final RoutePoints[] levels;
+	private int shownLevel = -1;
+
+	/**
+	 * Computes the levels of detail of a route. This is expensive for long
+	 * routes and should be done off the main thread.
+	 *
+	 * @param full
+	 *            every point of the route
+	 * @param tolerancePixels
+	 *            how far a dropped point may be from the line, in
+	 *            density-independent pixels at each zoom level
+	 * @param toleranceMeters
+	 *            how far a dropped point may be from the line, in meters,
+	 *            regardless of zoom level
+	 */
+	RouteDetail(RoutePoints full, float tolerancePixels, float toleranceMeters) {
+		levels = new RoutePoints[MAX_ZOOM - MIN_ZOOM + 1];
+		double latitude = full.isEmpty() ? 0 : full.getLatitude(0);
+		double metersPerDp = METERS_PER_DP_AT_ZOOM_0
+				* Math.cos(Math.toRadians(latitude));
+
+		// Rank the points once, then simplify each level from the full route
+		// so that the error does not add up from level to level. Working from
+		// the closest zoom outward, each level keeps a subset of the points
+		// of the one before it, so levels of the same size are the same.
+		PolylineSimplifier simplifier = new PolylineSimplifier();
+		double[] ranks = simplifier.rank(full, null);
+		RoutePoints previous = full;
+		for (int zoom = MAX_ZOOM; zoom >= MIN_ZOOM; zoom--) {
+			double tolerance = Math.max(toleranceMeters, tolerancePixels
+					* metersPerDp / Math.pow(2, zoom));
+			RoutePoints level = simplifier.simplify(full, ranks, tolerance,
+					new RoutePoints(previous.size()));
+			if (level.size() == previous.size()) {
+				level = previous;
+			}
+			levels[zoom - MIN_ZOOM] = level;
+			previous = level;
+		}
+	}
+
+	/**
+	 * @param zoom
+	 *            a camera zoom level
+	 * @return the index of the level of detail to show at that zoom
+	 */
+	int levelFor(float zoom) {
+		int z = (int) Math.floor(zoom);
+		return Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, z)) - MIN_ZOOM;
+	}
+
+	/**
+	 * @param level
+	 * @return the points of a level of detail, as a view suitable for a
+	 *         Polyline
+	 */
+	List<LatLng> getPoints(int level) {
+		return levels[level].asList();
+	}
+
+	/**
+	 * @return the level of detail the Route's Polyline currently shows
+	 */
+	int getShownLevel() {
+		return shownLevel;
+	}
+
+	/**
+	 * Records which level the Route's Polyline currently shows
+	 *
+	 * @param level
+	 */
+	void setShownLevel(int level) {
+		shownLevel = level;
+	}
+
+	/**
+	 * Whether switching from the shown level to the given one would change
+	 * the Polyline's points
+	 *
+	 * @param level
+	 * @return true if the points differ
+	 */
+	boolean needsUpdate(int level) {
+		return shownLevel == -1 || levels[shownLevel] != levels[level];
+	}
+}
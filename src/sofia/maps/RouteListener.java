@@ -0,0 +1,29 @@
+package sofia.maps;
+
+import com.google.android.gms.maps.model.Polyline;
+
+/**
+ * Receives the outcome of {@link MapScreen#drawRouteAsync(Route, String,
+ * RouteListener)}. Both methods are called on the main thread. Neither is
+ * called if the request is cancelled.
+ */
+public interface RouteListener {
+
+	/**
+	 * Called once the Route has been added to the map
+	 *
+	 * @param route
+	 *            the Route that was requested
+	 * @param polyline
+	 *            the Polyline now showing the Route
+	 */
+	void routeWasDrawn(Route route, Polyline polyline);
+
+	/**
+	 * Called if directions for the Route could not be found
+	 *
+	 * @param route
+	 *            the Route that was requested
+	 */
+	void routeFailed(Route route);
+}
@@ -0,0 +1,271 @@
+package sofia.gps;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the paths that RoadGraph finds with A* and ContractionHierarchy
+ * finds with its upward search against a plain Dijkstra search over random
+ * road networks, for both modes of travel, and that hierarchies survive being
+ * written and read back
+ */
+public class ContractionHierarchyTest extends TestCase {
+
+	// Constants
+	private static final int SIZE = 15;
+	private static final int QUERIES = 300;
+
+	// Fields
+	private RoadGraph graph;
+	// The node at each E6 coordinate, to follow paths back to nodes
+	private HashMap<Long, Integer> nodeAt;
+
+	@Override
+	protected void setUp() {
+		graph = randomGraph(new Random(1));
+		nodeAt = new HashMap<Long, Integer>();
+		for (int node = 0; node < graph.getNodeCount(); node++) {
+			nodeAt.put(key(graph.latitudeE6[node], graph.longitudeE6[node]),
+					node);
+		}
+	}
+
+	public void testDrivingPathsAreShortest() throws IOException {
+		assertShortestPaths(MapDirection.MODE_DRIVING, new Random(2));
+	}
+
+	public void testWalkingPathsAreShortest() throws IOException {
+		assertShortestPaths(MapDirection.MODE_WALKING, new Random(3));
+	}
+
+	public void testWriteReadRoundTrip() throws IOException {
+		ContractionHierarchy built = ContractionHierarchy.build(graph,
+				MapDirection.MODE_DRIVING);
+		byte[] written = write(built);
+		ContractionHierarchy read = ContractionHierarchy
+				.read(new ByteArrayInputStream(written));
+		assertEquals(built.getAccess(), read.getAccess());
+		assertEquals(built.getNodeCount(), read.getNodeCount());
+		assertEquals(built.getEdgeCount(), read.getEdgeCount());
+		assertTrue(Arrays.equals(written, write(read)));
+
+		Random random = new Random(4);
+		for (int i = 0; i < QUERIES; i++) {
+			int source = random.nextInt(graph.getNodeCount());
+			int target = random.nextInt(graph.getNodeCount());
+			RoutePoints expected = new RoutePoints();
+			RoutePoints actual = new RoutePoints();
+			assertEquals(built.findPath(graph, source, target, expected),
+					read.findPath(graph, source, target, actual));
+			assertTrue(Arrays.equals(
+					Arrays.copyOf(expected.getCoordinates(),
+							expected.size() * 2),
+					Arrays.copyOf(actual.getCoordinates(), actual.size() * 2)));
+		}
+	}
+
+	public void testReadRejectsBadChildren() throws IOException {
+		ContractionHierarchy built = ContractionHierarchy.build(graph,
+				MapDirection.MODE_DRIVING);
+		byte[] written = write(built);
+		ByteBuffer buffer = ByteBuffer.wrap(written);
+		int edges = built.getEdgeCount();
+		// Past the header and ranks, each edge takes 24 bytes, ending with
+		// its children
+		int firstEdge = 16 + built.getNodeCount() * 4;
+		int shortcut = -1;
+		for (int e = 0; e < edges && shortcut == -1; e++) {
+			if (buffer.getInt(firstEdge + e * 24 + 16) != -1) {
+				shortcut = e;
+			}
+		}
+		assertTrue("no shortcuts were built", shortcut != -1);
+
+		int[] badChildren = { -2, shortcut, edges, Integer.MAX_VALUE };
+		for (int child : badChildren) {
+			byte[] corrupt = written.clone();
+			ByteBuffer.wrap(corrupt).putInt(firstEdge + shortcut * 24 + 16,
+					child);
+			try {
+				ContractionHierarchy.read(new ByteArrayInputStream(corrupt));
+				fail("Read a shortcut with child " + child);
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+	}
+
+	private void assertShortestPaths(String mode, Random random)
+			throws IOException {
+		int access = RoadGraph.accessFor(mode);
+		ContractionHierarchy hierarchy = ContractionHierarchy.read(
+				new ByteArrayInputStream(write(ContractionHierarchy.build(
+						graph, mode))));
+		for (int i = 0; i < QUERIES; i++) {
+			int source = random.nextInt(graph.getNodeCount());
+			int target = random.nextInt(graph.getNodeCount());
+			double expected = dijkstra(source, target, access);
+
+			RoutePoints aStar = new RoutePoints();
+			RoutePoints upward = new RoutePoints();
+			boolean reachable = expected != Double.POSITIVE_INFINITY;
+			assertEquals(reachable,
+					graph.findPath(source, target, access, aStar));
+			assertEquals(reachable,
+					hierarchy.findPath(graph, source, target, upward));
+			if (reachable) {
+				assertEquals(expected,
+						cost(aStar, source, target, access), expected * 1E-9);
+				assertEquals(expected,
+						cost(upward, source, target, access), expected * 1E-9);
+			}
+		}
+	}
+
+	/**
+	 * @return the cost of the fastest path, or infinity if there is none
+	 */
+	private double dijkstra(int source, int target, int access) {
+		int n = graph.getNodeCount();
+		double[] distance = new double[n];
+		boolean[] settled = new boolean[n];
+		Arrays.fill(distance, Double.POSITIVE_INFINITY);
+		distance[source] = 0;
+		while (true) {
+			int node = -1;
+			for (int i = 0; i < n; i++) {
+				if (!settled[i] && distance[i] != Double.POSITIVE_INFINITY
+						&& (node == -1 || distance[i] < distance[node])) {
+					node = i;
+				}
+			}
+			if (node == -1 || node == target) {
+				return distance[target];
+			}
+			settled[node] = true;
+			for (int e = graph.firstEdge[node]; e < graph.firstEdge[node + 1]; e++) {
+				int next = graph.edgeTarget[e];
+				distance[next] = Math.min(distance[next], distance[node]
+						+ graph.edgeCost(e, access));
+			}
+		}
+	}
+
+	/**
+	 * @return the cost of a path found between two nodes, failing if it does
+	 *         not join them along edges open to the mode of travel
+	 */
+	private double cost(RoutePoints path, int source, int target, int access) {
+		assertEquals(source, nodeOf(path, 0));
+		assertEquals(target, nodeOf(path, path.size() - 1));
+		double total = 0;
+		for (int i = 1; i < path.size(); i++) {
+			int from = nodeOf(path, i - 1);
+			int to = nodeOf(path, i);
+			double best = Double.POSITIVE_INFINITY;
+			for (int e = graph.firstEdge[from]; e < graph.firstEdge[from + 1]; e++) {
+				if (graph.edgeTarget[e] == to) {
+					best = Math.min(best, graph.edgeCost(e, access));
+				}
+			}
+			assertTrue("no edge from " + from + " to " + to,
+					best != Double.POSITIVE_INFINITY);
+			total += best;
+		}
+		return total;
+	}
+
+	private int nodeOf(RoutePoints path, int index) {
+		Integer node = nodeAt.get(key(
+				(int) Math.round(path.getLatitude(index) * 1E6),
+				(int) Math.round(path.getLongitude(index) * 1E6)));
+		assertNotNull(node);
+		return node;
+	}
+
+	private static long key(int latitudeE6, int longitudeE6) {
+		return (long) latitudeE6 << 32 | (longitudeE6 & 0xffffffffL);
+	}
+
+	private static byte[] write(ContractionHierarchy hierarchy)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		hierarchy.write(out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return a grid of streets with some missing, some one-way and some
+	 *         closed to one mode of travel, at random speeds, with the odd
+	 *         parallel edge
+	 */
+	private static RoadGraph randomGraph(Random random) {
+		int n = SIZE * SIZE;
+		int[] latitudeE6 = new int[n];
+		int[] longitudeE6 = new int[n];
+		for (int i = 0; i < n; i++) {
+			latitudeE6[i] = 37220000 + (i / SIZE) * 1000 + random.nextInt(300);
+			longitudeE6[i] = -80420000 + (i % SIZE) * 1000
+					+ random.nextInt(300);
+		}
+
+		int[][] targets = new int[n][];
+		int edges = 0;
+		for (int i = 0; i < n; i++) {
+			int x = i % SIZE, y = i / SIZE;
+			int[] candidates = { x > 0 ? i - 1 : -1,
+					x < SIZE - 1 ? i + 1 : -1, y > 0 ? i - SIZE : -1,
+					y < SIZE - 1 ? i + SIZE : -1,
+					x < SIZE - 1 ? i + 1 : -1 };
+			int[] kept = new int[candidates.length];
+			int count = 0;
+			for (int j = 0; j < candidates.length; j++) {
+				// The last candidate repeats one, as a parallel road
+				int chance = j == candidates.length - 1 ? 10 : 85;
+				if (candidates[j] != -1 && random.nextInt(100) < chance) {
+					kept[count++] = candidates[j];
+				}
+			}
+			targets[i] = Arrays.copyOf(kept, count);
+			edges += count;
+		}
+
+		int[] firstEdge = new int[n + 1];
+		int[] edgeTarget = new int[edges];
+		float[] edgeLength = new float[edges];
+		byte[] edgeSpeed = new byte[edges];
+		byte[] edgeAccess = new byte[edges];
+		int e = 0;
+		for (int i = 0; i < n; i++) {
+			firstEdge[i] = e;
+			for (int target : targets[i]) {
+				edgeTarget[e] = target;
+				// Roads are never shorter than the straight line, which the
+				// A* bound relies on
+				edgeLength[e] = (float) (RoadGraph.distance(
+						latitudeE6[i] / 1E6, longitudeE6[i] / 1E6,
+						latitudeE6[target] / 1E6, longitudeE6[target] / 1E6)
+						* (1.01 + random.nextDouble()));
+				// 0 is the default speed
+				edgeSpeed[e] = (byte) (random.nextInt(5) == 0 ? 0
+						: 10 + random.nextInt(110));
+				int roll = random.nextInt(10);
+				edgeAccess[e] = (byte) (roll == 0 ? RoadGraph.ACCESS_WALKING
+						: roll == 1 ? RoadGraph.ACCESS_DRIVING
+								: RoadGraph.ACCESS_DRIVING
+										| RoadGraph.ACCESS_WALKING);
+				e++;
+			}
+		}
+		firstEdge[n] = e;
+		return new RoadGraph(latitudeE6, longitudeE6, firstEdge, edgeTarget,
+				edgeLength, edgeSpeed, edgeAccess);
+	}
+}
@@ -0,0 +1,110 @@
+package sofia.gps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import android.test.InstrumentationTestCase;
+
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * Checks that the streaming parsers of MapDirection give exactly the points
+ * that the Document parser gives for recorded Directions API responses
+ */
+public class MapDirectionTest extends InstrumentationTestCase {
+
+	// A driving route of five steps
+	private static final String DRIVING = "directions/driving.xml";
+	// A transit route whose walking steps hold nested steps
+	private static final String TRANSIT = "directions/transit.xml";
+
+	public void testDrivingStreamMatchesDocument() throws Exception {
+		assertSamePoints(parseDocument(DRIVING), parseStream(DRIVING));
+	}
+
+	public void testNestedStepsStreamMatchesDocument() throws Exception {
+		// Three top-level steps, two of which hold three and two steps
+		assertEquals(8, openDocument(TRANSIT).getElementsByTagName("step")
+				.getLength());
+		assertSamePoints(parseDocument(TRANSIT), parseStream(TRANSIT));
+	}
+
+	public void testRoutePointsMatchDocument() throws Exception {
+		for (String fixture : new String[] { DRIVING, TRANSIT }) {
+			RoutePoints points = new RoutePoints();
+			InputStream in = open(fixture);
+			try {
+				new MapDirection().getRoutePoints(in, points);
+			} finally {
+				in.close();
+			}
+			assertSamePoints(parseDocument(fixture),
+					new ArrayList<LatLng>(points.asList()));
+		}
+	}
+
+	public void testOverviewPointsMatchDocument() throws Exception {
+		for (String fixture : new String[] { DRIVING, TRANSIT }) {
+			Element overview = (Element) openDocument(fixture)
+					.getElementsByTagName("overview_polyline").item(0);
+			RoutePoints expected = MapDirection.decodePoly(overview
+					.getElementsByTagName("points").item(0).getTextContent(),
+					new RoutePoints());
+
+			RoutePoints points = new RoutePoints();
+			InputStream in = open(fixture);
+			try {
+				new MapDirection().getOverviewPoints(in, points);
+			} finally {
+				in.close();
+			}
+			assertSamePoints(new ArrayList<LatLng>(expected.asList()),
+					new ArrayList<LatLng>(points.asList()));
+		}
+	}
+
+	private ArrayList<LatLng> parseDocument(String fixture) throws Exception {
+		return new MapDirection().getDirection(openDocument(fixture));
+	}
+
+	private ArrayList<LatLng> parseStream(String fixture) throws Exception {
+		InputStream in = open(fixture);
+		try {
+			return new MapDirection().getDirection(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private Document openDocument(String fixture) throws Exception {
+		InputStream in = open(fixture);
+		try {
+			return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+					.parse(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private InputStream open(String fixture) throws IOException {
+		return getInstrumentation().getContext().getAssets().open(fixture);
+	}
+
+	private static void assertSamePoints(ArrayList<LatLng> expected,
+			ArrayList<LatLng> actual) {
+		assertFalse(expected.isEmpty());
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals("latitude of point " + i, expected.get(i).latitude,
+					actual.get(i).latitude, 0);
+			assertEquals("longitude of point " + i,
+					expected.get(i).longitude, actual.get(i).longitude, 0);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package sofia.gps;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that PolylineCodec round-trips points at both precisions, decodes
+ * text split anywhere, rejects truncated text and matches the example in
+ * Google's description of the format
+ */
+public class PolylineCodecTest extends TestCase {
+
+	// The example from Google's description of the encoded polyline format
+	private static final String REFERENCE = "_p~iF~ps|U_ulLnnqC_mqNvxq`@";
+	private static final double[] REFERENCE_POINTS = { 38.5, -120.2, 40.7,
+			-120.95, 43.252, -126.453 };
+
+	public void testRoundTripE5() {
+		assertRoundTrip(PolylineCodec.PRECISION_E5);
+	}
+
+	public void testRoundTripE6() {
+		assertRoundTrip(PolylineCodec.PRECISION_E6);
+	}
+
+	public void testDecodePartSplitInsidePoint() {
+		RoutePoints points = randomTrack(new Random(2), 50);
+		String encoded = PolylineCodec.encode(points,
+				PolylineCodec.PRECISION_E5);
+		RoutePoints expected = PolylineCodec.decode(encoded,
+				PolylineCodec.PRECISION_E5, new RoutePoints());
+
+		// Split in two at every position, most of which fall inside a point
+		boolean splitInsidePoint = false;
+		for (int split = 0; split <= encoded.length(); split++) {
+			PolylineCodec codec = new PolylineCodec(
+					PolylineCodec.PRECISION_E5);
+			RoutePoints decoded = new RoutePoints();
+			codec.decodePart(encoded, 0, split, decoded);
+			if (!codec.isDecodeComplete()) {
+				splitInsidePoint = true;
+			}
+			codec.decodePart(encoded, split, encoded.length(), decoded);
+			assertTrue(codec.isDecodeComplete());
+			assertSamePoints(expected, decoded);
+		}
+		assertTrue(splitInsidePoint);
+
+		// And one character at a time
+		PolylineCodec codec = new PolylineCodec(PolylineCodec.PRECISION_E5);
+		RoutePoints decoded = new RoutePoints();
+		for (int i = 0; i < encoded.length(); i++) {
+			codec.decodePart(encoded, i, i + 1, decoded);
+		}
+		assertTrue(codec.isDecodeComplete());
+		assertSamePoints(expected, decoded);
+	}
+
+	public void testTruncatedInputThrows() {
+		RoutePoints points = randomTrack(new Random(3), 20);
+		// Note where each point ends in the text
+		PolylineCodec encoder = new PolylineCodec(PolylineCodec.PRECISION_E5);
+		StringBuilder encoded = new StringBuilder();
+		boolean[] pointEnds = new boolean[points.size() * 22 + 1];
+		pointEnds[0] = true;
+		for (int i = 0; i < points.size(); i++) {
+			encoder.encode(points.getLatitude(i), points.getLongitude(i),
+					encoded);
+			pointEnds[encoded.length()] = true;
+		}
+
+		int truncated = 0;
+		for (int length = 1; length < encoded.length(); length++) {
+			if (pointEnds[length]) {
+				continue;
+			}
+			truncated++;
+			try {
+				PolylineCodec.decode(encoded.substring(0, length),
+						PolylineCodec.PRECISION_E5, new RoutePoints());
+				fail("Decoded a polyline truncated to " + length);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+		assertTrue(truncated > 0);
+	}
+
+	public void testReferenceExample() {
+		RoutePoints decoded = PolylineCodec.decode(REFERENCE,
+				PolylineCodec.PRECISION_E5, new RoutePoints());
+		assertEquals(REFERENCE_POINTS.length / 2, decoded.size());
+		for (int i = 0; i < decoded.size(); i++) {
+			assertEquals(REFERENCE_POINTS[i * 2], decoded.getLatitude(i), 1E-9);
+			assertEquals(REFERENCE_POINTS[i * 2 + 1], decoded.getLongitude(i),
+					1E-9);
+		}
+
+		RoutePoints points = new RoutePoints();
+		for (int i = 0; i < REFERENCE_POINTS.length; i += 2) {
+			points.add(REFERENCE_POINTS[i], REFERENCE_POINTS[i + 1]);
+		}
+		assertEquals(REFERENCE,
+				PolylineCodec.encode(points, PolylineCodec.PRECISION_E5));
+	}
+
+	private static void assertRoundTrip(int precision) {
+		double scale = Math.pow(10, precision);
+		RoutePoints points = randomTrack(new Random(precision), 100000);
+		String encoded = PolylineCodec.encode(points, precision);
+		RoutePoints decoded = PolylineCodec.decode(encoded, precision,
+				new RoutePoints());
+		assertEquals(points.size(), decoded.size());
+		for (int i = 0; i < points.size(); i++) {
+			assertEquals("latitude of point " + i,
+					Math.round(points.getLatitude(i) * scale) / scale,
+					decoded.getLatitude(i), 0);
+			assertEquals("longitude of point " + i,
+					Math.round(points.getLongitude(i) * scale) / scale,
+					decoded.getLongitude(i), 0);
+		}
+		// Decoded points are already rounded, so they encode the same
+		assertEquals(encoded, PolylineCodec.encode(decoded, precision));
+	}
+
+	/**
+	 * @return a wandering track with the occasional long jump, including
+	 *         across the antimeridian
+	 */
+	private static RoutePoints randomTrack(Random random, int size) {
+		RoutePoints points = new RoutePoints(size);
+		double latitude = 37.2296, longitude = -80.4139;
+		for (int i = 0; i < size; i++) {
+			if (random.nextInt(100) == 0) {
+				latitude = random.nextDouble() * 170 - 85;
+				longitude = random.nextDouble() * 360 - 180;
+			} else {
+				latitude = Math.max(-85, Math.min(85, latitude
+						+ (random.nextDouble() - 0.5) * 0.01));
+				longitude += (random.nextDouble() - 0.5) * 0.01;
+				if (longitude > 180) {
+					longitude -= 360;
+				} else if (longitude < -180) {
+					longitude += 360;
+				}
+			}
+			points.add(latitude, longitude);
+		}
+		return points;
+	}
+
+	private static void assertSamePoints(RoutePoints expected,
+			RoutePoints actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals("latitude of point " + i, expected.getLatitude(i),
+					actual.getLatitude(i), 0);
+			assertEquals("longitude of point " + i, expected.getLongitude(i),
+					actual.getLongitude(i), 0);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package sofia.gps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that a track left open by a crash, with a partly written record
+ * after its last whole one, is recovered fix for fix and can be appended to
+ */
+public class TrackRecorderTest extends TestCase {
+
+	// Fields
+	private File file;
+	private double[] latitudes, longitudes;
+	private long[] times;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("track", ".trk");
+		Random random = new Random(1);
+		latitudes = new double[300];
+		longitudes = new double[300];
+		times = new long[300];
+		double latitude = 37.2296, longitude = -80.4139;
+		long time = 1400000000000L;
+		for (int i = 0; i < times.length; i++) {
+			latitude += (random.nextDouble() - 0.5) * 0.001;
+			longitude += (random.nextDouble() - 0.5) * 0.001;
+			// The clock jumps back once, which forces a checkpoint
+			time += i == 77 ? -60000 : 1000 + random.nextInt(500);
+			latitudes[i] = latitude;
+			longitudes[i] = longitude;
+			times[i] = time;
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	public void testRecoverAfterCrash() throws IOException {
+		// Several checkpoints, then no close, as if the app was killed
+		TrackRecorder crashed = new TrackRecorder(file);
+		crashed.setCheckpointInterval(16);
+		for (int i = 0; i < 200; i++) {
+			crashed.record(latitudes[i], longitudes[i], times[i]);
+		}
+		assertEquals(200, crashed.getFixCount());
+		long end = crashed.getSize();
+
+		// What a crash part way through the next record leaves: some of its
+		// varints are written but its tag is not. Bytes of 2 read as delta
+		// records if recovery does not clear them.
+		RandomAccessFile torn = new RandomAccessFile(file, "rw");
+		try {
+			byte[] tail = new byte[40];
+			Arrays.fill(tail, TrackRecorder.TAG_DELTA);
+			torn.seek(end + 1);
+			torn.write(tail);
+		} finally {
+			torn.close();
+		}
+		assertFixes(200);
+
+		TrackRecorder recovered = new TrackRecorder(file);
+		try {
+			assertEquals(200, recovered.getFixCount());
+			assertEquals(end, recovered.getSize());
+			recovered.record(latitudes[200], longitudes[200], times[200]);
+			assertFixes(201);
+			for (int i = 201; i < times.length; i++) {
+				recovered.record(latitudes[i], longitudes[i], times[i]);
+			}
+			assertEquals(times.length, recovered.getFixCount());
+			// Readable before it is closed, and after
+			assertFixes(times.length);
+		} finally {
+			recovered.close();
+		}
+		assertFixes(times.length);
+
+		TrackRecorder reopened = new TrackRecorder(file);
+		try {
+			assertEquals(times.length, reopened.getFixCount());
+		} finally {
+			reopened.close();
+		}
+	}
+
+	/**
+	 * Asserts that the track replays exactly the first count fixes, rounded
+	 * to the precision of the track
+	 */
+	private void assertFixes(int count) throws IOException {
+		TrackReader reader = new TrackReader(file);
+		try {
+			double scale = Math.pow(10, reader.getPrecision());
+			for (int i = 0; i < count; i++) {
+				assertTrue("fix " + i + " is missing", reader.next());
+				assertEquals(i, reader.getIndex());
+				assertEquals("latitude of fix " + i,
+						Math.round(latitudes[i] * scale) / scale,
+						reader.getLatitude(), 0);
+				assertEquals("longitude of fix " + i,
+						Math.round(longitudes[i] * scale) / scale,
+						reader.getLongitude(), 0);
+				assertEquals("time of fix " + i, times[i], reader.getTime());
+			}
+			assertFalse(reader.next());
+		} finally {
+			reader.close();
+		}
+	}
+}